@@ -0,0 +1,123 @@
+package de.mpicbg.scf.segtools.benchmarks;
+
+import de.mpicbg.scf.segtools.ContourTracer;
+import de.mpicbg.scf.segtools.Conversions;
+import de.mpicbg.scf.segtools.LabelIndex;
+import ij.gui.Roi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the Conversions hot paths on synthetic label images (see SyntheticLabels).
+ * Build with mvn -Pbenchmarks package (main directory), run with: java -jar target/benchmarks.jar -rf json -rff results.json
+ * The default parameters are a small regression set (2 configurations, a few minutes in total). Widen them on the
+ * command line, e.g. -p size=256,1024 -p slices=16,128 -p labels=10,1000 -p density=0.05,0.3 -p parallelism=1,8
+ * (the full grid takes hours, overlayPerLabelLoop alone minutes per invocation at 1024x1024x128 with 1000 labels).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-Djava.awt.headless=true"})
+public class ConversionsBenchmark {
+
+    /** width and height of the volume */
+    @Param({"256"})
+    int size;
+
+    @Param({"32"})
+    int slices;
+
+    @Param({"100"})
+    int labels;
+
+    /** fraction of foreground voxels */
+    @Param({"0.1"})
+    double density;
+
+    /** worker threads for the parallel variants */
+    @Param({"1", "4"})
+    int parallelism;
+
+    private SyntheticLabels input;
+    private Roi[] associatedRois;
+    private Roi[] unassociatedRois;
+    private int[] labelIds;
+    private int middleLabel;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        input = new SyntheticLabels(size, slices, labels, density, 42L);
+
+        // one roi per slice, associated to the slice
+        associatedRois = Conversions.RoisFromBinaryMask(input.maskImp);
+
+        // the same rois without slice association: each one is drawn into all slices
+        unassociatedRois = Conversions.RoisFromBinaryMask(input.maskImp);
+        for (Roi roi : unassociatedRois) {
+            roi.setPosition(0);
+        }
+
+        labelIds = LabelIndex.build(input.labelImp).getLabels();
+        middleLabel = labelIds.length > 0 ? labelIds[labelIds.length / 2] : 1;
+    }
+
+    @Benchmark
+    public Object binaryMaskFromRoisAssociated() {
+        return Conversions.BinaryMaskFromRois(associatedRois, size, size, slices, true, parallelism);
+    }
+
+    @Benchmark
+    public Object binaryMaskFromRoisUnassociated() {
+        return Conversions.BinaryMaskFromRois(unassociatedRois, size, size, slices, false, parallelism);
+    }
+
+    @Benchmark
+    public Object roisFromBinaryMask() {
+        return Conversions.RoisFromBinaryMask(input.maskImp, parallelism);
+    }
+
+    @Benchmark
+    public Object roisFromOneLabel() {
+        return Conversions.RoisFromOneLabel(input.labelImp, middleLabel, parallelism);
+    }
+
+    /** the per-label loop of Create3DOverlayPlugin before single-pass extraction: every label traces every slice */
+    @Benchmark
+    public void overlayPerLabelLoop(Blackhole blackhole) {
+        for (int labelId : labelIds) {
+            blackhole.consume(Conversions.RoisFromOneLabel(input.labelImp, labelId, parallelism));
+        }
+    }
+
+    /** the label extraction of Create3DOverlayPlugin: index and single pass over the slices */
+    @Benchmark
+    public Object overlayAllLabels() {
+        return Conversions.RoisFromAllLabels(input.labelImp, LabelIndex.build(input.labelImp), parallelism);
+    }
+
+    /** the label extraction of Create3DOverlayPlugin with polygon outlines (ContourTracer) */
+    @Benchmark
+    public Object overlayAllLabelsPolygons() {
+        return Conversions.RoisFromAllLabels(input.labelImp, LabelIndex.build(input.labelImp), new ContourTracer(0), parallelism);
+    }
+
+    @Benchmark
+    public Object roisFromBinaryMaskPolygons() {
+        return Conversions.RoisFromBinaryMask(input.maskImp, new ContourTracer(0), parallelism);
+    }
+}
@@ -0,0 +1,82 @@
+package de.mpicbg.scf.segtools.benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+/**
+ * Deterministic synthetic inputs for the benchmarks: a 16 bit label image of randomly placed ellipsoids and the
+ * corresponding binary mask. Same parameters and seed give the same images.
+ */
+class SyntheticLabels {
+
+    final ImagePlus labelImp;
+    final ImagePlus maskImp;
+
+    /**
+     * @param size width and height
+     * @param nslices number of slices
+     * @param nlabels number of ellipsoids (labels 1..nlabels, later labels overwrite earlier ones where they overlap)
+     * @param density target fraction of foreground voxels
+     * @param seed random seed
+     */
+    SyntheticLabels(int size, int nslices, int nlabels, double density, long seed) {
+        Random random = new Random(seed);
+
+        ImageStack labelStack = new ImageStack(size, size);
+        ImageStack maskStack = new ImageStack(size, size);
+        short[][] labelPixels = new short[nslices][];
+        byte[][] maskPixels = new byte[nslices][];
+        for (int z = 0; z < nslices; z++) {
+            labelPixels[z] = new short[size * size];
+            maskPixels[z] = new byte[size * size];
+        }
+
+        // radius (in xy, in pixels) such that all ellipsoids together cover about density of the volume.
+        // ellipsoids are flattened in z by the ratio of slices to size
+        double zScale = Math.min(1.0, (double) nslices / size);
+        double volumePerLabel = density * size * size * nslices / nlabels;
+        double radius = Math.cbrt(3 * volumePerLabel / (4 * Math.PI * zScale));
+        radius = Math.max(1.0, Math.min(radius, size / 2.0));
+        double radiusZ = Math.max(0.5, radius * zScale);
+
+        for (int label = 1; label < nlabels + 1; label++) {
+            // vary the size a little
+            double rx = radius * (0.75 + 0.5 * random.nextDouble());
+            double ry = radius * (0.75 + 0.5 * random.nextDouble());
+            double rz = radiusZ * (0.75 + 0.5 * random.nextDouble());
+            double cx = random.nextDouble() * size;
+            double cy = random.nextDouble() * size;
+            double cz = random.nextDouble() * nslices;
+
+            int x0 = Math.max(0, (int) Math.floor(cx - rx)), x1 = Math.min(size - 1, (int) Math.ceil(cx + rx));
+            int y0 = Math.max(0, (int) Math.floor(cy - ry)), y1 = Math.min(size - 1, (int) Math.ceil(cy + ry));
+            int z0 = Math.max(0, (int) Math.floor(cz - rz)), z1 = Math.min(nslices - 1, (int) Math.ceil(cz + rz));
+
+            for (int z = z0; z <= z1; z++) {
+                double dz = (z + 0.5 - cz) / rz;
+                for (int y = y0; y <= y1; y++) {
+                    double dy = (y + 0.5 - cy) / ry;
+                    for (int x = x0; x <= x1; x++) {
+                        double dx = (x + 0.5 - cx) / rx;
+                        if (dx * dx + dy * dy + dz * dz <= 1) {
+                            labelPixels[z][y * size + x] = (short) label;
+                            maskPixels[z][y * size + x] = (byte) 255;
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int z = 0; z < nslices; z++) {
+            labelStack.addSlice("", new ShortProcessor(size, size, labelPixels[z], null));
+            maskStack.addSlice("", new ByteProcessor(size, size, maskPixels[z], null));
+        }
+
+        labelImp = new ImagePlus("labels", labelStack);
+        maskImp = new ImagePlus("mask", maskStack);
+    }
+}
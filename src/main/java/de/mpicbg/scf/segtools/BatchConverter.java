@@ -0,0 +1,375 @@
+package de.mpicbg.scf.segtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless batch driver: runs one of the Conversions operations on all matching files of a directory, several files
+ * in parallel. No GUI objects (image windows, RoiManager) are created. A failing file is reported and skipped, the
+ * batch continues. A summary with throughput and failures is printed at the end.
+ *
+ * Usage:
+ * java -Djava.awt.headless=true -cp [classpath] de.mpicbg.scf.segtools.BatchConverter operation input output [options]
+ *
+ * operation: mask2rois (binary mask -> RoiSet.zip), labels2rois (label image -> RoiSet.zip with one colored roi per
+ *            label and slice, as in the overlay plugin), rois2mask (RoiSet.zip or .segrois -> binary mask tif)
+ * input:     directory, or glob pattern for the file names, e.g. /data/masks/*.tif
+ * output:    output directory
+ * options:   --threads n       number of files processed in parallel (default: number of processors)
+ *            --size wxhxd      mask size for rois2mask, e.g. 512x512x100 (required for rois2mask)
+ *            --no-associate    rois2mask: draw every roi into all slices
+ *            --compact         mask2rois, labels2rois: write compact roi sets (.segrois, see CompactRoiSet) instead of zip
+ *            --metrics file    append the stage times and counters of every file to a CSV file (see TaskMonitor)
+ */
+public class BatchConverter {
+
+    enum Operation { MASK2ROIS, LABELS2ROIS, ROIS2MASK }
+
+    private static final String USAGE = "Usage: BatchConverter mask2rois|labels2rois|rois2mask <input dir or glob> <output dir>" +
+            " [--threads n] [--size wxhxd] [--no-associate] [--compact] [--metrics file.csv]";
+
+    /** Outcome of a single file */
+    private static class FileResult {
+        File file;
+        long voxels;
+        int rois;
+        String error; // null if successful
+    }
+
+    private final Operation operation;
+    private final File outputDir;
+    private final int threads;
+    private final int[] maskSize; // width, height, depth. only rois2mask
+    private final boolean associate;
+    private final boolean compact;
+    private final File metricsFile; // null: no metrics
+
+
+    BatchConverter(Operation operation, File outputDir, int threads, int[] maskSize, boolean associate, boolean compact,
+                   File metricsFile) {
+        this.operation = operation;
+        this.outputDir = outputDir;
+        this.threads = threads;
+        this.maskSize = maskSize;
+        this.associate = associate;
+        this.compact = compact;
+        this.metricsFile = metricsFile;
+    }
+
+
+    public static void main(final String... args) {
+        if (args.length < 3) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        Operation operation;
+        try {
+            operation = Operation.valueOf(args[0].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown operation: " + args[0]);
+            System.exit(2);
+            return;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        int[] maskSize = null;
+        boolean associate = true;
+        boolean compact = false;
+        File metricsFile = null;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = ParseInt("--threads", args[++i]);
+            }
+            else if (args[i].equals("--size") && i + 1 < args.length) {
+                String[] dims = args[++i].split("x");
+                if (dims.length < 2) {
+                    System.err.println("Invalid value for --size: " + args[i] + " (expected wxhxd)");
+                    System.err.println(USAGE);
+                    System.exit(2);
+                }
+                maskSize = new int[]{ParseInt("--size", dims[0]), ParseInt("--size", dims[1]), dims.length > 2 ? ParseInt("--size", dims[2]) : 1};
+            }
+            else if (args[i].equals("--no-associate")) {
+                associate = false;
+            }
+            else if (args[i].equals("--compact")) {
+                compact = true;
+            }
+            else if (args[i].equals("--metrics") && i + 1 < args.length) {
+                metricsFile = new File(args[++i]);
+            }
+            else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        if (operation == Operation.ROIS2MASK && maskSize == null) {
+            System.err.println("rois2mask requires --size wxhxd");
+            System.exit(2);
+        }
+
+        File outputDir = new File(args[2]);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            System.err.println("Cannot create output directory " + outputDir);
+            System.exit(2);
+        }
+
+        List<File> files = findFiles(args[1], operation);
+        if (files.isEmpty()) {
+            System.err.println("No input files found for " + args[1]);
+            System.exit(2);
+        }
+
+        BatchConverter converter = new BatchConverter(operation, outputDir, Math.max(threads, 1), maskSize, associate, compact, metricsFile);
+        boolean success = converter.run(files);
+
+        System.exit(success ? 0 : 1);
+    }
+
+
+    /** Helper for main: parses the number of an option, exits with the usage message if it is not a number */
+    private static int ParseInt(String option, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + option + ": " + value);
+            System.err.println(USAGE);
+            System.exit(2);
+            return 0;
+        }
+    }
+
+
+    /**
+     * Lists the input files.
+     * @param input directory (then all files with the default extensions of the operation are used) or glob pattern
+     * @return matching files, sorted by name
+     */
+    static List<File> findFiles(String input, Operation operation) {
+        File dir;
+        String glob;
+
+        File inputFile = new File(input);
+        if (inputFile.isDirectory()) {
+            dir = inputFile;
+            glob = (operation == Operation.ROIS2MASK) ? "*.{zip,segrois}" : "*.{tif,tiff}";
+        }
+        else {
+            dir = inputFile.getAbsoluteFile().getParentFile();
+            glob = inputFile.getName();
+        }
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+
+        List<File> files = new ArrayList<>();
+        File[] candidates = (dir == null) ? null : dir.listFiles();
+        if (candidates == null) {
+            return files;
+        }
+        for (File file : candidates) {
+            Path name = file.toPath().getFileName();
+            if (file.isFile() && matcher.matches(name)) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+
+        return files;
+    }
+
+
+    /**
+     * Processes all files on a pool of threads and prints a summary.
+     * @return whether all files were converted successfully
+     */
+    boolean run(List<File> files) {
+        long start = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        List<Future<FileResult>> futures = new ArrayList<>();
+        for (final File file : files) {
+            futures.add(pool.submit(() -> processFile(file)));
+        }
+
+        List<FileResult> results = new ArrayList<>();
+        try {
+            for (Future<FileResult> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            // processFile catches all errors of a file, so this only happens if the batch itself is interrupted
+            Thread.currentThread().interrupt();
+            System.err.println("Batch interrupted: " + e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return printSummary(results, files.size(), seconds);
+    }
+
+
+    /** Converts a single file. Never throws, errors are returned in the result. */
+    private FileResult processFile(File file) {
+        FileResult result = new FileResult();
+        result.file = file;
+
+        // stage times and counters of this file (runs in its own thread)
+        TaskMonitor monitor = TaskMonitor.start(file.getName());
+        try {
+            String baseName = file.getName().replaceFirst("\\.[^.]*$", "");
+
+            switch (operation) {
+                case MASK2ROIS: {
+                    ImagePlus mask = open(file);
+                    Roi[] rois;
+                    try (TaskMonitor.Timer timer = TaskMonitor.Time("tracing")) {
+                        rois = Conversions.RoisFromBinaryMask(mask, 1);
+                    }
+                    writeRois(rois, baseName + "_RoiSet");
+                    result.voxels = (long) mask.getWidth() * mask.getHeight() * mask.getNSlices();
+                    result.rois = rois.length;
+                    break;
+                }
+                case LABELS2ROIS: {
+                    ImagePlus labelImp = open(file);
+                    LabelIndex index = LabelIndex.build(labelImp);
+                    Map<Integer, Roi[]> roisPerLabel;
+                    try (TaskMonitor.Timer timer = TaskMonitor.Time("tracing")) {
+                        roisPerLabel = Conversions.RoisFromAllLabels(labelImp, index, 1);
+                    }
+                    Color[] colors = Create3DOverlayPlugin.pickColors("multicolor", roisPerLabel.size());
+
+                    List<Roi> allRois = new ArrayList<>();
+                    int idx = 0;
+                    for (Map.Entry<Integer, Roi[]> entry : roisPerLabel.entrySet()) {
+                        for (Roi roi : entry.getValue()) {
+                            roi.setStrokeColor(colors[idx]);
+                            roi.setName(String.format("label%d-%04d", entry.getKey(), roi.getZPosition()));
+                            allRois.add(roi);
+                        }
+                        idx++;
+                    }
+
+                    writeRois(allRois.toArray(new Roi[allRois.size()]), baseName + "_labels_RoiSet");
+                    result.voxels = (long) labelImp.getWidth() * labelImp.getHeight() * labelImp.getNSlices();
+                    result.rois = allRois.size();
+                    break;
+                }
+                case ROIS2MASK: {
+                    Roi[] rois = readRois(file);
+                    ImagePlus mask;
+                    try (TaskMonitor.Timer timer = TaskMonitor.Time("rasterization")) {
+                        mask = Conversions.BinaryMaskFromRois(rois, maskSize[0], maskSize[1], maskSize[2], associate, 1);
+                    }
+                    if (mask == null) {
+                        throw new IOException("invalid mask size " + Arrays.toString(maskSize));
+                    }
+                    File target = new File(outputDir, baseName + "_mask.tif");
+                    if (!IJ.saveAsTiff(mask, target.getPath())) {
+                        throw new IOException("could not write " + target);
+                    }
+                    result.voxels = (long) maskSize[0] * maskSize[1] * maskSize[2];
+                    result.rois = rois.length;
+                    break;
+                }
+            }
+        } catch (Exception | OutOfMemoryError e) {
+            result.error = e.toString();
+        } finally {
+            monitor.close();
+        }
+
+        if (metricsFile != null) {
+            try {
+                monitor.writeCsv(metricsFile);
+            } catch (IOException e) {
+                System.err.println("Could not write metrics of " + file + ": " + e.getMessage());
+            }
+        }
+
+        return result;
+    }
+
+
+    /** Writes rois as RoiSet.zip or, with --compact, as compact roi set. */
+    private void writeRois(Roi[] rois, String name) throws IOException {
+        if (compact) {
+            CompactRoiSet.write(rois, new File(outputDir, name + CompactRoiSet.EXTENSION));
+        }
+        else {
+            RoiSetIO.write(rois, new File(outputDir, name + ".zip"));
+        }
+    }
+
+
+    /** Reads a RoiSet.zip or a compact roi set. */
+    private static Roi[] readRois(File file) throws IOException {
+        if (file.getName().endsWith(CompactRoiSet.EXTENSION)) {
+            try (CompactRoiSet roiSet = CompactRoiSet.open(file)) {
+                return roiSet.getAllRois();
+            }
+        }
+        return RoiSetIO.read(file);
+    }
+
+
+    /** Opens an image without displaying it. */
+    private static ImagePlus open(File file) throws IOException {
+        ImagePlus imp = IJ.openImage(file.getPath());
+        if (imp == null) {
+            throw new IOException("could not open image");
+        }
+        return imp;
+    }
+
+
+    /**
+     * Prints throughput and failures.
+     * @return whether all files were converted successfully
+     */
+    private boolean printSummary(List<FileResult> results, int nfiles, double seconds) {
+        int failed = 0;
+        long voxels = 0;
+        long rois = 0;
+        for (FileResult result : results) {
+            if (result.error != null) {
+                failed++;
+                System.err.println("FAILED " + result.file + ": " + result.error);
+            }
+            else {
+                voxels += result.voxels;
+                rois += result.rois;
+            }
+        }
+        int succeeded = results.size() - failed;
+        int missing = nfiles - results.size();
+
+        System.out.println(String.format("%s: %d of %d files converted, %d failed%s, in %.1f s",
+                operation.name().toLowerCase(), succeeded, nfiles, failed,
+                missing > 0 ? ", " + missing + " not processed" : "", seconds));
+        System.out.println(String.format("throughput: %.2f files/s, %.1f Mvoxels/s, %.0f rois/s (%d threads)",
+                succeeded / seconds, voxels / seconds / 1e6, rois / seconds, threads));
+
+        return failed == 0 && missing == 0;
+    }
+}
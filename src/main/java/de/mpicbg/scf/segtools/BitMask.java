@@ -0,0 +1,401 @@
+package de.mpicbg.scf.segtools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Binary 3D mask with one bit per voxel (8 times less memory than an 8 bit stack). Each row is stored in 64 bit words,
+ * so runs of pixels are filled and found a word at a time. Slices without foreground use no memory.
+ * Slices are counted from 1 (like ImageStack slices), x and y in pixels.
+ * Writing to different slices from different threads is safe, writing to the same slice is not.
+ *
+ * See also RleMask, which uses less memory for sparse masks.
+ */
+public class BitMask {
+
+    private final int width;
+    private final int height;
+    private final int nSlices;
+    private final int wordsPerRow;
+
+    // per slice (index slice-1): bits of all rows, row y in words [y*wordsPerRow, (y+1)*wordsPerRow). bit x%64 of word
+    // x/64 is pixel x. bits beyond the width are always 0. null for empty slices
+    private final long[][] bits;
+
+
+    /**
+     * Creates an empty mask.
+     *
+     * @param width, height, nSlices: dimensions
+     */
+    public BitMask(int width, int height, int nSlices) {
+        this.width = width;
+        this.height = height;
+        this.nSlices = nSlices;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.bits = new long[nSlices][];
+    }
+
+
+    /**
+     * Creates a bit mask from a binary image. Pixels with value >= 1 are foreground (like RoisFromBinaryMask,
+     * therefore a label image as input works as well). The image is read slice by slice and not modified.
+     *
+     * @param mask binary image (e.g. 0 background, 255 foreground)
+     * @return bit mask
+     */
+    public static BitMask fromImage(ImagePlus mask) {
+        BitMask bitMask = fromView(mask);
+        if (bitMask != null) {
+            return bitMask;
+        }
+
+        int nSlices = mask.getNSlices();
+        bitMask = new BitMask(mask.getWidth(), mask.getHeight(), nSlices);
+        ImageStack stack = mask.getStack();
+
+        for (int slice = 1; slice < nSlices + 1; slice++) {
+            bitMask.addSlice(slice, stack.getProcessor(slice));
+        }
+
+        return bitMask;
+    }
+
+
+    /**
+     * @param imp image
+     * @return the mask shown by imp if imp was created with toImagePlus, otherwise null
+     */
+    public static BitMask fromView(ImagePlus imp) {
+        ImageStack stack = imp.getStack();
+        return (stack instanceof SliceView) ? ((SliceView) stack).mask : null;
+    }
+
+
+    /**
+     * Adds all pixels with value >= 1 of a 2d processor to a slice.
+     *
+     * @param slice 1-based slice
+     * @param ip processor with the same width and height as the mask
+     */
+    public void addSlice(int slice, ImageProcessor ip) {
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int w = 0; w < wordsPerRow; w++) {
+                long word = 0;
+                int xEnd = Math.min((w + 1) << 6, width);
+                for (int x = w << 6; x < xEnd; x++) {
+                    if (ip.getf(offset + x) >= 1) {
+                        word |= 1L << (x & 63);
+                    }
+                }
+                if (word != 0) {
+                    sliceBits(slice)[y * wordsPerRow + w] |= word;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Adds the area of a roi to a slice. Same pixels as ImageProcessor.fill(roi), but without a dense slice
+     * (except for line and point rois, which are rasterized through a temporary slice).
+     *
+     * @param slice 1-based slice
+     * @param roi area roi in image coordinates
+     */
+    public void addRoi(int slice, Roi roi) {
+        addRuns(slice, RleMask.RoiRuns(roi, width, height));
+    }
+
+
+    /**
+     * Adds row runs (see RleMask.RoiRuns) to a slice.
+     *
+     * @param slice 1-based slice
+     * @param rowRuns runs as pairs (xStart, xEnd) per row, xEnd exclusive. null for rows without pixels
+     */
+    void addRuns(int slice, int[][] rowRuns) {
+        for (int y = 0; y < height; y++) {
+            if (rowRuns[y] == null) {
+                continue;
+            }
+            for (int r = 0; r < rowRuns[y].length; r += 2) {
+                addRun(slice, y, rowRuns[y][r], rowRuns[y][r + 1]);
+            }
+        }
+    }
+
+
+    /**
+     * Adds the run [xStart, xEnd) of row y of a slice (union with existing foreground). The run is clipped to the
+     * width; whole words are filled at once.
+     *
+     * @param slice 1-based slice
+     * @param y row
+     * @param xStart first pixel of the run
+     * @param xEnd first pixel after the run
+     */
+    public void addRun(int slice, int y, int xStart, int xEnd) {
+        xStart = Math.max(xStart, 0);
+        xEnd = Math.min(xEnd, width);
+        if (xEnd <= xStart) {
+            return;
+        }
+
+        long[] words = sliceBits(slice);
+        int base = y * wordsPerRow;
+        int first = xStart >>> 6;
+        int last = (xEnd - 1) >>> 6;
+        long firstMask = -1L << (xStart & 63);
+        long lastMask = -1L >>> (63 - ((xEnd - 1) & 63));
+
+        if (first == last) {
+            words[base + first] |= firstMask & lastMask;
+            return;
+        }
+        words[base + first] |= firstMask;
+        Arrays.fill(words, base + first + 1, base + last, -1L);
+        words[base + last] |= lastMask;
+    }
+
+
+    /**
+     * @param slice 1-based slice
+     * @return whether pixel (x,y) of the slice is foreground
+     */
+    public boolean get(int slice, int x, int y) {
+        long[] words = bits[slice - 1];
+        return words != null && (words[y * wordsPerRow + (x >>> 6)] & (1L << (x & 63))) != 0;
+    }
+
+
+    /**
+     * @param slice 1-based slice
+     * @param y row
+     * @return runs of the row as pairs (xStart, xEnd), xEnd exclusive. Empty array for empty rows.
+     */
+    public int[] getRuns(int slice, int y) {
+        long[] words = bits[slice - 1];
+        if (words == null) {
+            return new int[0];
+        }
+
+        int base = y * wordsPerRow;
+        int[] runs = new int[8];
+        int nvalues = 0;
+
+        int x = NextBit(words, base, 0, true);
+        while (x < width) {
+            int xEnd = NextBit(words, base, x, false);
+            if (nvalues + 2 > runs.length) {
+                runs = Arrays.copyOf(runs, 2 * runs.length);
+            }
+            runs[nvalues++] = x;
+            runs[nvalues++] = xEnd;
+            x = NextBit(words, base, xEnd, true);
+        }
+
+        return Arrays.copyOf(runs, nvalues);
+    }
+
+
+    /**
+     * @param slice 1-based slice
+     * @return whether the slice has no foreground
+     */
+    public boolean isEmpty(int slice) {
+        long[] words = bits[slice - 1];
+        if (words == null) {
+            return true;
+        }
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * @param slice 1-based slice
+     * @return bounding box of the foreground of a slice, null for empty slices
+     */
+    public Rectangle getBounds(int slice) {
+        long[] words = bits[slice - 1];
+        if (words == null) {
+            return null;
+        }
+
+        int xMin = Integer.MAX_VALUE, xMax = Integer.MIN_VALUE, yMin = -1, yMax = -1;
+        for (int y = 0; y < height; y++) {
+            int base = y * wordsPerRow;
+            int x = NextBit(words, base, 0, true);
+            if (x == width) {
+                continue;
+            }
+            if (yMin < 0) yMin = y;
+            yMax = y;
+            xMin = Math.min(xMin, x);
+
+            // last set bit of the row
+            for (int w = wordsPerRow - 1; w >= 0; w--) {
+                if (words[base + w] != 0) {
+                    xMax = Math.max(xMax, (w << 6) + 63 - Long.numberOfLeadingZeros(words[base + w]));
+                    break;
+                }
+            }
+        }
+
+        return (yMin < 0) ? null : new Rectangle(xMin, yMin, xMax - xMin + 1, yMax - yMin + 1);
+    }
+
+
+    /**
+     * @return number of foreground voxels
+     */
+    public long getVoxelCount() {
+        long count = 0;
+        for (long[] words : bits) {
+            if (words == null) {
+                continue;
+            }
+            for (long word : words) {
+                count += Long.bitCount(word);
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Densifies the region box of a single slice.
+     *
+     * @param slice 1-based slice
+     * @param box region to densify (null: whole slice)
+     * @return 8 bit processor of size box with foreground 255, background 0
+     */
+    public ImageProcessor getSliceProcessor(int slice, Rectangle box) {
+        if (box == null) {
+            box = new Rectangle(0, 0, width, height);
+        }
+
+        ByteProcessor ip = new ByteProcessor(box.width, box.height);
+        byte[] pixels = (byte[]) ip.getPixels();
+
+        long[] words = bits[slice - 1];
+        if (words == null) {
+            return ip;
+        }
+
+        int boxEnd = box.x + box.width;
+        for (int y = box.y; y < box.y + box.height; y++) {
+            int base = y * wordsPerRow;
+            int offset = (y - box.y) * box.width - box.x;
+            int x = NextBit(words, base, box.x, true);
+            while (x < boxEnd) {
+                int xEnd = Math.min(NextBit(words, base, x, false), boxEnd);
+                Arrays.fill(pixels, offset + x, offset + xEnd, (byte) 255);
+                x = NextBit(words, base, xEnd, true);
+            }
+        }
+
+        return ip;
+    }
+
+
+    /**
+     * Shows the mask as 8 bit image (foreground 255, background 0) without densifying it: the slices are a virtual
+     * stack, each displayed slice is expanded when it is shown. The image is a read-only view, changes of its pixels
+     * are lost when the slice is shown again. Use fromView to get the mask back (e.g. to trace rois).
+     *
+     * @return virtual 8 bit binary mask. uncalibrated
+     */
+    public ImagePlus toImagePlus() {
+        ImagePlus mask = new ImagePlus("binary mask", new SliceView(this));
+        if (nSlices > 1) {
+            mask.setDimensions(1, nSlices, 1);
+        }
+        return mask;
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getNSlices() {
+        return nSlices;
+    }
+
+
+    /** Helper: words of a slice, allocated on first use */
+    private long[] sliceBits(int slice) {
+        long[] words = bits[slice - 1];
+        if (words == null) {
+            words = new long[height * wordsPerRow];
+            bits[slice - 1] = words;
+        }
+        return words;
+    }
+
+
+    /** Helper: first x >= from in the row starting at word base whose bit is set (or clear), width if there is none */
+    private int NextBit(long[] words, int base, int from, boolean set) {
+        if (from >= width) {
+            return width;
+        }
+        int w = from >>> 6;
+        long word = (set ? words[base + w] : ~words[base + w]) & (-1L << (from & 63));
+        while (word == 0) {
+            if (++w == wordsPerRow) {
+                return width;
+            }
+            word = set ? words[base + w] : ~words[base + w];
+        }
+        return Math.min((w << 6) + Long.numberOfTrailingZeros(word), width);
+    }
+
+
+    /** Virtual stack of toImagePlus: expands a slice when it is requested */
+    private static class SliceView extends VirtualStack {
+        private final BitMask mask;
+
+        SliceView(BitMask mask) {
+            super(mask.width, mask.height, null, null);
+            this.mask = mask;
+        }
+
+        @Override
+        public ImageProcessor getProcessor(int n) {
+            return mask.getSliceProcessor(n, null);
+        }
+
+        @Override
+        public int getSize() {
+            return mask.nSlices;
+        }
+
+        @Override
+        public String getSliceLabel(int n) {
+            return null;
+        }
+
+        @Override
+        public int getBitDepth() {
+            return 8;
+        }
+    }
+}
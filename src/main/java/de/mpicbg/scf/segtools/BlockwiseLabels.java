@@ -0,0 +1,328 @@
+package de.mpicbg.scf.segtools;
+
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.view.Views;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Label extraction for label images which are larger than the memory (e.g. cell images opened from N5, see
+ * ImgConversions). The image is split into blocks of blockDepth slices, optionally also into xy tiles of
+ * tileSize x tileSize pixels, and the blocks are processed independently and in parallel. Only the blocks currently
+ * processed are held in memory (at most parallelism blocks at once); the results (index, rois) of course are kept.
+ *
+ * The results are the same as for the whole image:
+ * - the LabelIndex of the blocks are merged (z-range, bounding box and voxel count of each label).
+ * - the rois of a label are traced with the block of its tile if its bounding box lies inside one tile. Labels whose
+ *   bounding box crosses tile borders are traced separately from their bounding box, read as 8 bit mask of the label
+ *   only, in blocks of at most blockDepth slices and at most as many voxels as a tile block (but at least one slice).
+ *
+ * Memory per worker: one tile block as float (tileSize x tileSize x blockDepth x 4 bytes), or for a label crossing
+ * tile borders the smaller of its bounding box and a tile block, at 1 byte per voxel, but at least one slice of its
+ * bounding box. A single very large label (e.g. a whole organ) can therefore need up to one whole slice per worker.
+ *
+ * Rois are in pixel coordinates relative to the minimum of the interval, slices are numbered 1..depth as in ImageJ.
+ * Label ids must be below 2^24 (exact in float).
+ */
+public class BlockwiseLabels {
+
+    private final int blockDepth;
+    private final int tileSize;
+
+
+    /**
+     * A part of the image: slices zFrom..zTo (1-based, inclusive) inside box, and the labels to trace in it.
+     * Blocks of a single label (label != 0) are read as binary mask of that label.
+     */
+    private static class Block {
+        final int zFrom;
+        final int zTo;
+        final Rectangle box;
+        final int label;
+        final List<LabelIndex.Region> regions = new ArrayList<>();
+
+        Block(int zFrom, int zTo, Rectangle box) {
+            this(zFrom, zTo, box, 0);
+        }
+
+        Block(int zFrom, int zTo, Rectangle box, int label) {
+            this.zFrom = zFrom;
+            this.zTo = zTo;
+            this.box = box;
+            this.label = label;
+        }
+    }
+
+
+    /**
+     * @param blockDepth number of slices per block (e.g. the cell depth of the image)
+     * @param tileSize width and height of the xy tiles in pixels. 0: whole slices
+     */
+    public BlockwiseLabels(int blockDepth, int tileSize) {
+        this.blockDepth = Math.max(blockDepth, 1);
+        this.tileSize = Math.max(tileSize, 0);
+    }
+
+    public int getBlockDepth() {
+        return blockDepth;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+
+    /**
+     * Builds the LabelIndex of a label image block by block.
+     *
+     * @param labelImg 2D or 3D label image with regions of value 1,2,3,...
+     * @param parallelism number of blocks processed at the same time. 1 runs in the calling thread.
+     * @return index of all non-zero labels, the same as LabelIndex.build of the whole image
+     */
+    public <T extends IntegerType<T>> LabelIndex buildIndex(final RandomAccessibleInterval<T> labelImg, int parallelism) {
+        final List<Block> blocks = Blocks(labelImg);
+
+        @SuppressWarnings("unchecked")
+        final Map<Integer, LabelIndex.Region>[] parts = new Map[blocks.size()];
+
+        ParallelSlices.ForEach(blocks.size(), parallelism, idx -> {
+            Block block = blocks.get(idx - 1);
+            ImageProcessor[] slices = ReadBlock(labelImg, block);
+            Map<Integer, LabelIndex.Region> regions = new HashMap<>();
+            for (int i = 0; i < slices.length; i++) {
+                LabelIndex.scanSlice(slices[i], block.zFrom + i, block.box.x, block.box.y, regions);
+            }
+            parts[idx - 1] = regions;
+        });
+
+        return LabelIndex.merge((int) labelImg.dimension(0), (int) labelImg.dimension(1),
+                ImgConversions.NumberOfSlices(labelImg), Arrays.asList(parts));
+    }
+
+
+    /**
+     * Like Conversions.RoisFromAllLabels, block by block. Builds the index first (see buildIndex).
+     *
+     * @param labelImg 2D or 3D label image with regions of value 1,2,3,...
+     * @param tracer contour tracer, null: one (composite) roi per label and slice from ThresholdToSelection
+     * @param parallelism number of blocks processed at the same time. 1 runs in the calling thread.
+     * @return map from label id to the array of its rois (in slice order). Labels are sorted in ascending order.
+     */
+    public <T extends IntegerType<T>> Map<Integer, Roi[]> roisFromAllLabels(RandomAccessibleInterval<T> labelImg,
+                                                                            ContourTracer tracer, int parallelism) {
+        return roisFromAllLabels(labelImg, buildIndex(labelImg, parallelism), tracer, parallelism);
+    }
+
+
+    /**
+     * Like roisFromAllLabels(RandomAccessibleInterval labelImg, ContourTracer tracer, int parallelism), with an already
+     * computed index. Blocks without labels are not read.
+     *
+     * @param labelImg 2D or 3D label image with regions of value 1,2,3,...
+     * @param index label index of labelImg, see buildIndex
+     * @param tracer contour tracer, null: one (composite) roi per label and slice from ThresholdToSelection
+     * @param parallelism number of blocks processed at the same time. 1 runs in the calling thread.
+     * @return map from label id to the array of its rois (in slice order). Labels are sorted in ascending order.
+     */
+    public <T extends IntegerType<T>> Map<Integer, Roi[]> roisFromAllLabels(RandomAccessibleInterval<T> labelImg, LabelIndex index,
+                                                                            ContourTracer tracer, int parallelism) {
+        List<Block> blocks = Blocks(labelImg);
+        int nSlices = ImgConversions.NumberOfSlices(labelImg);
+        int nBlocks = (nSlices + blockDepth - 1) / blockDepth;
+        int tilesPerBlock = blocks.size() / nBlocks;
+        int tileColumns = (tileSize == 0) ? 1 : ((int) labelImg.dimension(0) + tileSize - 1) / tileSize;
+
+        // labels inside a single tile go to the blocks of their tile, the others get blocks of their own
+        List<Block> crossing = new ArrayList<>();
+        for (LabelIndex.Region region : index.getRegions()) {
+            Rectangle bounds = region.getBounds();
+            int tile = 0;
+            if (tileSize > 0) {
+                int column = bounds.x / tileSize;
+                int row = bounds.y / tileSize;
+                if ((bounds.x + bounds.width - 1) / tileSize != column || (bounds.y + bounds.height - 1) / tileSize != row) {
+                    crossing.addAll(LabelBlocks(labelImg, region));
+                    continue;
+                }
+                tile = row * tileColumns + column;
+            }
+            for (int b = (region.getZMin() - 1) / blockDepth; b < (region.getZMax() - 1) / blockDepth + 1; b++) {
+                blocks.get(b * tilesPerBlock + tile).regions.add(region);
+            }
+        }
+
+        // blocks ordered by slices, so the rois of each label are collected in slice order
+        List<Block> tasks = new ArrayList<>();
+        for (Block block : blocks) {
+            if (!block.regions.isEmpty()) {
+                tasks.add(block);
+            }
+        }
+        tasks.addAll(crossing);
+        tasks.sort((a, b) -> Integer.compare(a.zFrom, b.zFrom));
+
+        return Trace(labelImg, tasks, tracer, parallelism);
+    }
+
+
+    /**
+     * Like Conversions.RoisFromOneLabel(ImagePlus labelImp, int labelId, LabelIndex index): reads only the bounding box
+     * of the label, as binary mask in blocks of at most blockDepth slices (see the class documentation).
+     *
+     * @param labelImg 2D or 3D label image with regions of value 1,2,3,...
+     * @param labelId region for which Rois are extracted
+     * @param index label index of labelImg, see buildIndex
+     * @param tracer contour tracer, null: one (composite) roi per slice from ThresholdToSelection
+     * @param parallelism number of blocks processed at the same time. 1 runs in the calling thread.
+     * @return rois in slice order (empty if labelId does not occur in the image)
+     */
+    public <T extends IntegerType<T>> Roi[] roisFromOneLabel(RandomAccessibleInterval<T> labelImg, int labelId, LabelIndex index,
+                                                             ContourTracer tracer, int parallelism) {
+        LabelIndex.Region region = index.getRegion(labelId);
+        if (region == null) {
+            return new Roi[0];
+        }
+        Roi[] rois = Trace(labelImg, LabelBlocks(labelImg, region), tracer, parallelism).get(labelId);
+        return (rois == null) ? new Roi[0] : rois;
+    }
+
+
+    /** Helper: all blocks of the image (without labels), ordered by slices, then tile rows, then tile columns */
+    private List<Block> Blocks(RandomAccessibleInterval<?> img) {
+        int width = (int) img.dimension(0);
+        int height = (int) img.dimension(1);
+        int nSlices = ImgConversions.NumberOfSlices(img);
+        int tileWidth = (tileSize == 0) ? width : tileSize;
+        int tileHeight = (tileSize == 0) ? height : tileSize;
+
+        List<Block> blocks = new ArrayList<>();
+        for (int zFrom = 1; zFrom < nSlices + 1; zFrom += blockDepth) {
+            int zTo = Math.min(zFrom + blockDepth - 1, nSlices);
+            for (int y = 0; y < height; y += tileHeight) {
+                for (int x = 0; x < width; x += tileWidth) {
+                    blocks.add(new Block(zFrom, zTo, new Rectangle(x, y, Math.min(tileWidth, width - x), Math.min(tileHeight, height - y))));
+                }
+            }
+        }
+        return blocks;
+    }
+
+
+    /**
+     * Helper: blocks covering the bounding box and z-range of a single label. A block has at most blockDepth slices
+     * and at most the voxels of a tile block, but at least one slice.
+     */
+    private List<Block> LabelBlocks(RandomAccessibleInterval<?> img, LabelIndex.Region region) {
+        Rectangle bounds = region.getBounds();
+        long tileArea = (tileSize == 0) ? img.dimension(0) * img.dimension(1) : (long) tileSize * tileSize;
+        long depth = tileArea * blockDepth / ((long) bounds.width * bounds.height);
+        int labelDepth = (int) Math.max(1, Math.min(depth, blockDepth));
+
+        List<Block> blocks = new ArrayList<>();
+        for (int zFrom = region.getZMin(); zFrom < region.getZMax() + 1; zFrom += labelDepth) {
+            Block block = new Block(zFrom, Math.min(zFrom + labelDepth - 1, region.getZMax()), bounds, region.getLabel());
+            block.regions.add(region);
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+
+    /** Helper: traces the labels of each block. Blocks must be ordered by slices */
+    private static <T extends IntegerType<T>> Map<Integer, Roi[]> Trace(final RandomAccessibleInterval<T> labelImg, final List<Block> blocks,
+                                                                       final ContourTracer tracer, int parallelism) {
+        final int nSlices = ImgConversions.NumberOfSlices(labelImg);
+
+        @SuppressWarnings("unchecked")
+        final Map<Integer, Roi[]>[] perBlock = new Map[blocks.size()];
+
+        ParallelSlices.ForEach(blocks.size(), parallelism, idx -> {
+            Block block = blocks.get(idx - 1);
+            ImageProcessor[] slices = ReadBlock(labelImg, block);
+            Map<Integer, Roi[]> blockRois = new HashMap<>();
+
+            for (LabelIndex.Region region : block.regions) {
+                int labelId = region.getLabel();
+                // bounding box of the label, relative to the block
+                Rectangle box = region.getBounds();
+                box.translate(-block.box.x, -block.box.y);
+
+                // binary mask of a single label: foreground 255
+                double lower = (block.label == 0) ? labelId : 255;
+                double upper = (block.label == 0) ? labelId + 0.1 : 255;
+
+                List<Roi> roiList = new ArrayList<>();
+                for (int slice = Math.max(block.zFrom, region.getZMin()); slice < Math.min(block.zTo, region.getZMax()) + 1; slice++) {
+                    for (Roi roi : Conversions.TraceRois(slices[slice - block.zFrom], lower, upper, box, tracer)) {
+                        roi.setLocation(roi.getXBase() + block.box.x, roi.getYBase() + block.box.y);
+                        if (nSlices > 1) {
+                            roi.setPosition(1, slice, 1);
+                        }
+                        roiList.add(roi);
+                    }
+                }
+                blockRois.put(labelId, roiList.toArray(new Roi[roiList.size()]));
+            }
+            perBlock[idx - 1] = blockRois;
+        });
+
+        // per label, in slice order (blocks are ordered by slices)
+        return Conversions.CollectPerLabel(Arrays.asList(perBlock));
+    }
+
+
+    /**
+     * Helper: copies the slices of a block into float processors (one per slice). Blocks of a single label are read
+     * into 8 bit processors instead, with 255 where the label is and 0 elsewhere.
+     */
+    private static <T extends IntegerType<T>> ImageProcessor[] ReadBlock(RandomAccessibleInterval<T> img, Block block) {
+        int nDims = img.numDimensions();
+        long[] min = new long[nDims];
+        long[] max = new long[nDims];
+        min[0] = img.min(0) + block.box.x;
+        max[0] = min[0] + block.box.width - 1;
+        min[1] = img.min(1) + block.box.y;
+        max[1] = min[1] + block.box.height - 1;
+        if (nDims == 3) {
+            min[2] = img.min(2) + block.zFrom - 1;
+            max[2] = img.min(2) + block.zTo - 1;
+        }
+
+        // one cursor over the whole block: x fastest, then y, then z
+        Cursor<T> cursor = Views.flatIterable(Views.interval(img, min, max)).cursor();
+        ImageProcessor[] slices = new ImageProcessor[block.zTo - block.zFrom + 1];
+        for (int i = 0; i < slices.length; i++) {
+            if (block.label != 0) {
+                ByteProcessor ip = new ByteProcessor(block.box.width, block.box.height);
+                byte[] pixels = (byte[]) ip.getPixels();
+                for (int p = 0; p < pixels.length; p++) {
+                    cursor.fwd();
+                    if (cursor.get().getInteger() == block.label) {
+                        pixels[p] = (byte) 255;
+                    }
+                }
+                slices[i] = ip;
+                continue;
+            }
+            FloatProcessor ip = new FloatProcessor(block.box.width, block.box.height);
+            float[] pixels = (float[]) ip.getPixels();
+            for (int p = 0; p < pixels.length; p++) {
+                cursor.fwd();
+                pixels[p] = cursor.get().getInteger();
+            }
+            slices[i] = ip;
+        }
+        return slices;
+    }
+}
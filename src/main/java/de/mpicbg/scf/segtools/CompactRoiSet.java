@@ -0,0 +1,468 @@
+package de.mpicbg.scf.segtools;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+import ij.process.FloatPolygon;
+
+import java.awt.Color;
+import java.awt.Polygon;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary file format for large roi sets (extension .segrois), as alternative to RoiSet.zip with one zip entry
+ * per roi. The rois are grouped by slice and the file starts with an index of the slices, so a reader memory-maps the
+ * slices that are requested and decodes only those.
+ *
+ * Polygon rois (polygon, freehand, traced, polyline, freeline) are stored with slice position, name, colors and their
+ * coordinates as variable length deltas. All other rois (and polygon rois with other properties, e.g. a stroke width,
+ * spline fit, or subclasses of PolygonRoi such as EllipseRoi) are stored in ImageJ's roi format, so they are restored
+ * completely.
+ *
+ * Layout: magic "SEGROIS1", int number of index entries (slice 0 = rois without slice, 1..n), int number of rois,
+ * per index entry: long offset and int roi count, then the roi records of all slices. Big endian.
+ */
+public class CompactRoiSet implements Closeable {
+
+    /** file extension of compact roi sets */
+    public static final String EXTENSION = ".segrois";
+
+    private static final byte[] MAGIC = "SEGROIS1".getBytes(StandardCharsets.US_ASCII);
+
+    // record kinds
+    private static final int KIND_INT_POLYGON = 0;
+    private static final int KIND_FLOAT_POLYGON = 1;
+    private static final int KIND_IMAGEJ = 2;
+
+    // record flags
+    private static final int FLAG_HYPERSTACK_POSITION = 1;
+    private static final int FLAG_STROKE_COLOR = 2;
+    private static final int FLAG_FILL_COLOR = 4;
+
+    // records are copied to the file in blocks of this size
+    private static final int WRITE_BLOCK_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final long[] sliceOffsets;
+    private final int[] sliceCounts;
+    private final int count;
+
+
+    private CompactRoiSet(FileChannel channel, long[] sliceOffsets, int[] sliceCounts, int count) {
+        this.channel = channel;
+        this.sliceOffsets = sliceOffsets;
+        this.sliceCounts = sliceCounts;
+        this.count = count;
+    }
+
+
+    /**
+     * Opens a compact roi set. Only the index is read, the records of a slice are memory-mapped and decoded on request
+     * by getRois.
+     *
+     * @param source .segrois file (the records of a single slice at most 2 GB)
+     * @return reader, to be closed after use
+     * @throws IOException if the file cannot be read or is no compact roi set
+     */
+    public static CompactRoiSet open(File source) throws IOException {
+        FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ReadFully(channel, 0, MAGIC.length + 8);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException("Not a compact roi set: " + source);
+                }
+            }
+
+            int nentries = header.getInt();
+            int count = header.getInt();
+            ByteBuffer index = ReadFully(channel, MAGIC.length + 8, 12 * nentries);
+            long[] sliceOffsets = new long[nentries];
+            int[] sliceCounts = new int[nentries];
+            for (int slice = 0; slice < nentries; slice++) {
+                sliceOffsets[slice] = index.getLong();
+                sliceCounts[slice] = index.getInt();
+            }
+
+            return new CompactRoiSet(channel, sliceOffsets, sliceCounts, count);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /** @return total number of rois */
+    public int getCount() {
+        return count;
+    }
+
+
+    /** @return highest slice with rois (0 if all rois are without slice) */
+    public int getMaxSlice() {
+        return sliceOffsets.length - 1;
+    }
+
+
+    /** @return number of rois of a slice (slice 0: rois without slice) */
+    public int getCount(int slice) {
+        return (slice < 0 || slice >= sliceCounts.length) ? 0 : sliceCounts[slice];
+    }
+
+
+    /**
+     * Decodes the rois of a single slice. Can be called from several threads.
+     *
+     * @param slice 1-based slice, 0 for rois without slice
+     * @return rois of the slice, in the order they were written. Empty if the slice has no rois.
+     * @throws IOException if an roi in ImageJ format cannot be decoded
+     */
+    public Roi[] getRois(int slice) throws IOException {
+        int n = getCount(slice);
+        Roi[] rois = new Roi[n];
+        if (n == 0) {
+            return rois;
+        }
+
+        // records of the slice end where the next slice starts
+        long end = (slice + 1 < sliceOffsets.length) ? sliceOffsets[slice + 1] : channel.size();
+        ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, sliceOffsets[slice], end - sliceOffsets[slice]);
+        for (int i = 0; i < n; i++) {
+            rois[i] = ReadRoi(in);
+        }
+        return rois;
+    }
+
+
+    /**
+     * Decodes all rois.
+     * @return rois sorted by slice (rois without slice first), in written order within a slice
+     * @throws IOException if an roi in ImageJ format cannot be decoded
+     */
+    public Roi[] getAllRois() throws IOException {
+        List<Roi> roiList = new ArrayList<>(count);
+        for (int slice = 0; slice < sliceOffsets.length; slice++) {
+            for (Roi roi : getRois(slice)) {
+                roiList.add(roi);
+            }
+        }
+        return roiList.toArray(new Roi[roiList.size()]);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+
+    /**
+     * Writes rois to a compact roi set.
+     *
+     * The records are streamed to the file, the index is written at the end.
+     *
+     * @param rois rois to write. They are grouped by their (z) slice, the order within a slice is kept.
+     * @param target target file, overwritten if it exists
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Roi[] rois, File target) throws IOException {
+        int maxSlice = 0;
+        for (Roi roi : rois) {
+            maxSlice = Math.max(maxSlice, roi.getZPosition());
+        }
+
+        // encode the records of each slice
+        List<List<Roi>> roisPerSlice = new ArrayList<>(maxSlice + 1);
+        for (int slice = 0; slice < maxSlice + 1; slice++) {
+            roisPerSlice.add(new ArrayList<Roi>());
+        }
+        for (Roi roi : rois) {
+            roisPerSlice.get(Math.max(roi.getZPosition(), 0)).add(roi);
+        }
+
+        int headerSize = MAGIC.length + 8 + 12 * (maxSlice + 1);
+        long[] sliceOffsets = new long[maxSlice + 1];
+
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // records after the (not yet known) index, in blocks
+            channel.position(headerSize);
+            OutputStream out = Channels.newOutputStream(channel);
+            ByteArrayOutputStream block = new ByteArrayOutputStream(WRITE_BLOCK_SIZE);
+            long written = headerSize;
+
+            for (int slice = 0; slice < maxSlice + 1; slice++) {
+                sliceOffsets[slice] = written + block.size();
+                for (Roi roi : roisPerSlice.get(slice)) {
+                    WriteRoi(block, roi);
+                    if (block.size() >= WRITE_BLOCK_SIZE) {
+                        written += block.size();
+                        block.writeTo(out);
+                        block.reset();
+                    }
+                }
+            }
+            block.writeTo(out);
+
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            header.put(MAGIC);
+            header.putInt(maxSlice + 1);
+            header.putInt(rois.length);
+            for (int slice = 0; slice < maxSlice + 1; slice++) {
+                header.putLong(sliceOffsets[slice]);
+                header.putInt(roisPerSlice.get(slice).size());
+            }
+            header.flip();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+        }
+    }
+
+
+    /**
+     * Converts an ImageJ RoiSet.zip into a compact roi set.
+     * @param zipFile RoiSet.zip file
+     * @param target .segrois file, overwritten if it exists
+     * @throws IOException if a file cannot be read or written
+     */
+    public static void fromRoiSetZip(File zipFile, File target) throws IOException {
+        write(RoiSetIO.read(zipFile), target);
+    }
+
+
+    /**
+     * Converts a compact roi set into an ImageJ RoiSet.zip.
+     * @param source .segrois file
+     * @param zipFile RoiSet.zip file, overwritten if it exists
+     * @throws IOException if a file cannot be read or written
+     */
+    public static void toRoiSetZip(File source, File zipFile) throws IOException {
+        try (CompactRoiSet roiSet = open(source)) {
+            RoiSetIO.write(roiSet.getAllRois(), zipFile);
+        }
+    }
+
+
+    /** Helper for write. Appends the record of one roi */
+    private static void WriteRoi(ByteArrayOutputStream out, Roi roi) throws IOException {
+        int kind = KindOf(roi);
+        out.write(kind);
+
+        if (kind == KIND_IMAGEJ) {
+            byte[] bytes = RoiEncoder.saveAsByteArray(roi);
+            WriteVarint(out, bytes.length);
+            out.write(bytes);
+            return;
+        }
+
+        int flags = 0;
+        if (roi.hasHyperStackPosition()) flags |= FLAG_HYPERSTACK_POSITION;
+        if (roi.getStrokeColor() != null) flags |= FLAG_STROKE_COLOR;
+        if (roi.getFillColor() != null) flags |= FLAG_FILL_COLOR;
+        out.write(flags);
+        out.write(roi.getType());
+
+        if (roi.hasHyperStackPosition()) {
+            WriteVarint(out, roi.getCPosition());
+            WriteVarint(out, roi.getZPosition());
+            WriteVarint(out, roi.getTPosition());
+        } else {
+            WriteVarint(out, roi.getPosition());
+        }
+
+        String name = roi.getName();
+        if (name == null) {
+            WriteVarint(out, 0);
+        } else {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            WriteVarint(out, nameBytes.length + 1);
+            out.write(nameBytes);
+        }
+
+        if (roi.getStrokeColor() != null) WriteInt(out, roi.getStrokeColor().getRGB());
+        if (roi.getFillColor() != null) WriteInt(out, roi.getFillColor().getRGB());
+
+        if (kind == KIND_INT_POLYGON) {
+            // first point absolute, then differences to the previous point
+            Polygon polygon = roi.getPolygon();
+            WriteVarint(out, polygon.npoints);
+            int lastX = 0, lastY = 0;
+            for (int i = 0; i < polygon.npoints; i++) {
+                WriteVarint(out, ZigZag(polygon.xpoints[i] - lastX));
+                WriteVarint(out, ZigZag(polygon.ypoints[i] - lastY));
+                lastX = polygon.xpoints[i];
+                lastY = polygon.ypoints[i];
+            }
+        } else {
+            FloatPolygon polygon = roi.getFloatPolygon();
+            WriteVarint(out, polygon.npoints);
+            for (int i = 0; i < polygon.npoints; i++) {
+                WriteInt(out, Float.floatToIntBits(polygon.xpoints[i]));
+                WriteInt(out, Float.floatToIntBits(polygon.ypoints[i]));
+            }
+        }
+    }
+
+
+    /**
+     * Helper for WriteRoi. Plain PolygonRois without properties the compact record cannot store use the compact kinds.
+     * Subclasses (EllipseRoi, RotatedRectRoi, ...) and spline fit rois would come back as plain polygons.
+     */
+    private static int KindOf(Roi roi) {
+        if (roi.getClass() != PolygonRoi.class || ((PolygonRoi) roi).isSplineFit() || roi.getStrokeWidth() > 1
+                || roi.getProperties() != null) {
+            return KIND_IMAGEJ;
+        }
+        switch (roi.getType()) {
+            case Roi.POLYGON:
+            case Roi.FREEROI:
+            case Roi.TRACED_ROI:
+            case Roi.POLYLINE:
+            case Roi.FREELINE:
+                return roi.subPixelResolution() ? KIND_FLOAT_POLYGON : KIND_INT_POLYGON;
+            default:
+                return KIND_IMAGEJ;
+        }
+    }
+
+
+    /** Helper for getRois. Decodes the record at the position of in and advances in */
+    private static Roi ReadRoi(ByteBuffer in) throws IOException {
+        int kind = in.get();
+
+        if (kind == KIND_IMAGEJ) {
+            byte[] bytes = new byte[ReadVarint(in)];
+            in.get(bytes);
+            return new RoiDecoder(bytes, null).getRoi();
+        }
+
+        int flags = in.get();
+        int type = in.get();
+
+        int c = 0, z, t = 0;
+        if ((flags & FLAG_HYPERSTACK_POSITION) != 0) {
+            c = ReadVarint(in);
+            z = ReadVarint(in);
+            t = ReadVarint(in);
+        } else {
+            z = ReadVarint(in);
+        }
+
+        String name = null;
+        int nameLength = ReadVarint(in) - 1;
+        if (nameLength >= 0) {
+            byte[] nameBytes = new byte[nameLength];
+            in.get(nameBytes);
+            name = new String(nameBytes, StandardCharsets.UTF_8);
+        }
+
+        Color strokeColor = ((flags & FLAG_STROKE_COLOR) != 0) ? new Color(in.getInt(), true) : null;
+        Color fillColor = ((flags & FLAG_FILL_COLOR) != 0) ? new Color(in.getInt(), true) : null;
+
+        int npoints = ReadVarint(in);
+        Roi roi;
+        if (kind == KIND_INT_POLYGON) {
+            int[] xpoints = new int[npoints];
+            int[] ypoints = new int[npoints];
+            int lastX = 0, lastY = 0;
+            for (int i = 0; i < npoints; i++) {
+                lastX += UnZigZag(ReadVarint(in));
+                lastY += UnZigZag(ReadVarint(in));
+                xpoints[i] = lastX;
+                ypoints[i] = lastY;
+            }
+            roi = new PolygonRoi(xpoints, ypoints, npoints, type);
+        } else {
+            float[] xpoints = new float[npoints];
+            float[] ypoints = new float[npoints];
+            for (int i = 0; i < npoints; i++) {
+                xpoints[i] = in.getFloat();
+                ypoints[i] = in.getFloat();
+            }
+            roi = new PolygonRoi(xpoints, ypoints, npoints, type);
+        }
+
+        if ((flags & FLAG_HYPERSTACK_POSITION) != 0) {
+            roi.setPosition(c, z, t);
+        } else {
+            roi.setPosition(z);
+        }
+        roi.setName(name);
+        roi.setStrokeColor(strokeColor);
+        roi.setFillColor(fillColor);
+
+        return roi;
+    }
+
+
+    /** Helper for open: reads length bytes at position */
+    private static ByteBuffer ReadFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("Compact roi set is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+    private static int ZigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+
+    private static int UnZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+
+    /** unsigned LEB128: 7 bits per byte, high bit set if more bytes follow */
+    private static void WriteVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+
+    private static int ReadVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+
+    private static void WriteInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
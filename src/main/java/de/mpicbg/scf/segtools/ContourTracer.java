@@ -0,0 +1,327 @@
+package de.mpicbg.scf.segtools;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Contour tracer for the roi extraction functions, alternative to ThresholdToSelection: creates one roi per
+ * 8-connected component of the pixels in the threshold range, with one vertex per corner of the outline (instead of
+ * one per pixel edge). Components with holes become a ShapeRoi, all others a PolygonRoi. With a tolerance > 0 the
+ * outlines are additionally simplified (Douglas-Peucker), then the rois only approximate the pixels.
+ *
+ * The outlines follow the pixel edges ("crack following"). Every outline is traced with the foreground on its right
+ * hand side, so in image coordinates (y down) outer outlines have a positive and hole outlines a negative area.
+ * A tracer has no state besides its tolerance and can be used from several threads.
+ */
+public class ContourTracer {
+
+    // directions: right, down, left, up
+    private static final int[] DX = {1, 0, -1, 0};
+    private static final int[] DY = {0, 1, 0, -1};
+
+    private final double tolerance;
+
+
+    /**
+     * @param tolerance maximum distance (in pixels) of a removed vertex from the simplified outline. 0: exact outlines.
+     */
+    public ContourTracer(double tolerance) {
+        this.tolerance = Math.max(tolerance, 0);
+    }
+
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+
+    /**
+     * Traces all pixels of ip with lower <= value <= upper, looking only inside box (box==null: whole slice).
+     *
+     * @param ip slice to trace. Not changed.
+     * @param lower, upper: threshold range (inclusive)
+     * @param box part of the slice to trace, e.g. the bounding box of a label. null: whole slice
+     * @return one roi per connected component in image coordinates, in raster order of their top left pixel.
+     * Empty if no pixel is in the threshold range.
+     */
+    public Roi[] trace(ImageProcessor ip, double lower, double upper, Rectangle box) {
+        if (box == null) {
+            box = new Rectangle(0, 0, ip.getWidth(), ip.getHeight());
+        }
+
+        // foreground with a border of one background pixel: no bounds checks while tracing
+        final int stride = box.width + 2;
+        byte[] fg = new byte[stride * (box.height + 2)];
+        boolean any = false;
+        for (int y = 0; y < box.height; y++) {
+            int offset = (y + box.y) * ip.getWidth() + box.x;
+            for (int x = 0; x < box.width; x++) {
+                float value = ip.getf(offset + x);
+                if (value >= lower && value <= upper) {
+                    fg[(y + 1) * stride + x + 1] = 1;
+                    any = true;
+                }
+            }
+        }
+        if (!any) {
+            return new Roi[0];
+        }
+
+        // every outline (outer or hole) has at least one top edge traced to the right. such an edge is only traced once
+        boolean[] visited = new boolean[fg.length];
+        List<int[]> outers = new ArrayList<>();
+        List<int[]> holes = new ArrayList<>();
+        List<Long> outerAreas = new ArrayList<>();
+
+        for (int y = 0; y < box.height; y++) {
+            for (int x = 0; x < box.width; x++) {
+                int i = (y + 1) * stride + x + 1;
+                if (fg[i] == 0 || fg[i - stride] != 0 || visited[i]) {
+                    continue;
+                }
+                int[] outline = TraceOutline(fg, visited, stride, x, y);
+                long area2 = DoubleArea(outline);
+                if (area2 > 0) {
+                    outers.add(outline);
+                    outerAreas.add(area2);
+                } else {
+                    holes.add(outline);
+                }
+            }
+        }
+
+        // assign every hole to the smallest outer outline containing it
+        List<List<int[]>> holesPerOuter = new ArrayList<>();
+        for (int k = 0; k < outers.size(); k++) {
+            holesPerOuter.add(new ArrayList<int[]>());
+        }
+        for (int[] hole : holes) {
+            // center of the background pixel above the first (top, rightwards) edge of the hole: never on an outline
+            double px = hole[hole.length - 2] + 0.5;
+            double py = hole[hole.length - 1] - 0.5;
+            int best = -1;
+            for (int k = 0; k < outers.size(); k++) {
+                if ((best < 0 || outerAreas.get(k) < outerAreas.get(best)) && Contains(outers.get(k), px, py)) {
+                    best = k;
+                }
+            }
+            if (best >= 0) {
+                holesPerOuter.get(best).add(hole);
+            }
+        }
+
+        Roi[] rois = new Roi[outers.size()];
+        for (int k = 0; k < outers.size(); k++) {
+            rois[k] = ToRoi(outers.get(k), holesPerOuter.get(k), box);
+        }
+        return rois;
+    }
+
+
+    /**
+     * Helper for trace. Follows the outline which starts with the top edge of pixel (x0,y0), going right.
+     * At a vertex the tracer turns left if possible, so diagonally touching pixels belong to the same outline.
+     * @return the corners of the outline as x,y pairs (pixel corner coordinates, relative to the box). The last corner
+     * is the start vertex (x0,y0).
+     */
+    private static int[] TraceOutline(byte[] fg, boolean[] visited, int stride, int x0, int y0) {
+        int[] corners = new int[16];
+        int n = 0;
+
+        int vx = x0, vy = y0, d = 0;
+        do {
+            if (d == 0) {
+                visited[(vy + 1) * stride + vx + 1] = true; // top edge of pixel (vx,vy)
+            }
+            vx += DX[d];
+            vy += DY[d];
+
+            // the four pixels around vertex (vx,vy), in the padded array
+            int ul = vy * stride + vx;
+            boolean upperLeft = fg[ul] != 0;
+            boolean upperRight = fg[ul + 1] != 0;
+            boolean lowerLeft = fg[ul + stride] != 0;
+            boolean lowerRight = fg[ul + stride + 1] != 0;
+
+            // pixels ahead of the vertex, left and right of the walking direction
+            boolean aheadLeft, aheadRight;
+            switch (d) {
+                case 0:  aheadLeft = upperRight; aheadRight = lowerRight; break;
+                case 1:  aheadLeft = lowerRight; aheadRight = lowerLeft; break;
+                case 2:  aheadLeft = lowerLeft; aheadRight = upperLeft; break;
+                default: aheadLeft = upperLeft; aheadRight = upperRight; break;
+            }
+
+            int next;
+            if (aheadLeft) {
+                next = (d + 3) % 4; // turn left
+            } else if (aheadRight) {
+                next = d; // straight on
+            } else {
+                next = (d + 1) % 4; // turn right
+            }
+
+            if (next != d) {
+                if (n + 2 > corners.length) {
+                    corners = Arrays.copyOf(corners, 2 * corners.length);
+                }
+                corners[n++] = vx;
+                corners[n++] = vy;
+            }
+            d = next;
+        } while (vx != x0 || vy != y0 || d != 0);
+
+        return Arrays.copyOf(corners, n);
+    }
+
+
+    /** Helper for trace. Twice the signed area of a closed outline (shoelace formula) */
+    private static long DoubleArea(int[] xy) {
+        long area2 = 0;
+        int n = xy.length / 2;
+        for (int i = 0; i < n; i++) {
+            int j = (i + 1) % n;
+            area2 += (long) xy[2 * i] * xy[2 * j + 1] - (long) xy[2 * j] * xy[2 * i + 1];
+        }
+        return area2;
+    }
+
+
+    /** Helper for trace. Point in polygon test (even-odd rule), point must not lie on the outline */
+    private static boolean Contains(int[] xy, double px, double py) {
+        boolean inside = false;
+        int n = xy.length / 2;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            double xi = xy[2 * i], yi = xy[2 * i + 1];
+            double xj = xy[2 * j], yj = xy[2 * j + 1];
+            if ((yi > py) != (yj > py) && px < (xj - xi) * (py - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+
+    /** Helper for trace. Creates the roi of an outer outline and its holes, in image coordinates */
+    private Roi ToRoi(int[] outer, List<int[]> holes, Rectangle box) {
+        PolygonRoi outerRoi = ToPolygonRoi(outer, box);
+        if (holes.isEmpty()) {
+            return outerRoi;
+        }
+
+        ShapeRoi shape = new ShapeRoi(outerRoi);
+        for (int[] hole : holes) {
+            shape = shape.not(new ShapeRoi(ToPolygonRoi(hole, box)));
+        }
+        return shape;
+    }
+
+
+    /** Helper for ToRoi. Simplifies an outline (if tolerance > 0) and shifts it from box to image coordinates */
+    private PolygonRoi ToPolygonRoi(int[] outline, Rectangle box) {
+        int[] xy = (tolerance > 0) ? Simplify(outline, tolerance) : outline;
+
+        int n = xy.length / 2;
+        int[] xpoints = new int[n];
+        int[] ypoints = new int[n];
+        for (int i = 0; i < n; i++) {
+            xpoints[i] = xy[2 * i] + box.x;
+            ypoints[i] = xy[2 * i + 1] + box.y;
+        }
+
+        // traced rois cover exactly the pixels inside their pixel corner outline
+        return new PolygonRoi(xpoints, ypoints, n, (tolerance > 0) ? Roi.POLYGON : Roi.TRACED_ROI);
+    }
+
+
+    /**
+     * Douglas-Peucker simplification of a closed outline: split at the first corner and the corner farthest from it,
+     * then simplify both halves. Outlines which would shrink below 3 corners are kept as they are.
+     * @return simplified outline as x,y pairs
+     */
+    static int[] Simplify(int[] xy, double tolerance) {
+        int n = xy.length / 2;
+        if (n <= 4) {
+            return xy;
+        }
+
+        // the corner farthest from corner 0
+        int far = 0;
+        long farDist = -1;
+        for (int i = 1; i < n; i++) {
+            long dx = xy[2 * i] - xy[0], dy = xy[2 * i + 1] - xy[1];
+            if (dx * dx + dy * dy > farDist) {
+                farDist = dx * dx + dy * dy;
+                far = i;
+            }
+        }
+
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[far] = true;
+        SimplifyRange(xy, 0, far, tolerance * tolerance, keep);
+        SimplifyRange(xy, far, n, tolerance * tolerance, keep);
+
+        int count = 0;
+        for (boolean k : keep) {
+            if (k) count++;
+        }
+        if (count < 3) {
+            return xy;
+        }
+
+        int[] simplified = new int[2 * count];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                simplified[m++] = xy[2 * i];
+                simplified[m++] = xy[2 * i + 1];
+            }
+        }
+        return simplified;
+    }
+
+
+    /** Helper for Simplify. Marks the corners to keep between from and to (exclusive, index n means corner 0) */
+    private static void SimplifyRange(int[] xy, int from, int to, double tolerance2, boolean[] keep) {
+        int n = xy.length / 2;
+        if (to - from < 2) {
+            return;
+        }
+
+        double ax = xy[2 * from], ay = xy[2 * from + 1];
+        double bx = xy[2 * (to % n)], by = xy[2 * (to % n) + 1];
+        double abx = bx - ax, aby = by - ay;
+        double ab2 = abx * abx + aby * aby;
+
+        int worst = -1;
+        double worstDist = tolerance2;
+        for (int i = from + 1; i < to; i++) {
+            double px = xy[2 * i] - ax, py = xy[2 * i + 1] - ay;
+            double dist2;
+            if (ab2 == 0) {
+                dist2 = px * px + py * py;
+            } else {
+                double cross = px * aby - py * abx;
+                dist2 = cross * cross / ab2;
+            }
+            if (dist2 > worstDist) {
+                worstDist = dist2;
+                worst = i;
+            }
+        }
+
+        if (worst >= 0) {
+            keep[worst] = true;
+            SimplifyRange(xy, from, worst, tolerance2, keep);
+            SimplifyRange(xy, worst, to, tolerance2, keep);
+        }
+    }
+}
@@ -2,13 +2,32 @@ package de.mpicbg.scf.segtools;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
 import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+import ij.plugin.FileInfoVirtualStack;
 import ij.plugin.filter.ThresholdToSelection;
 import ij.plugin.frame.RoiManager;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 /*
  * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
@@ -34,13 +53,7 @@ public class Conversions {
         ImagePlus mask = IJ.createImage("binary mask", "8-bit black", imp.getWidth(), imp.getHeight(), imp.getNSlices());
         mask.setCalibration(imp.getCalibration());
 
-        int numrois = rm.getCount();
-
-        for (int idx = 0; idx < numrois; idx++) {
-            Roi roi = rm.getRoi(idx);
-
-            UpdateMask(mask,roi,associate,idx);
-        }
+        UpdateMask(mask, rm.getRoisAsArray(), associate, 1);
 
         mask.setSlice(1);
         return mask;
@@ -63,14 +76,7 @@ public class Conversions {
 
         ImagePlus mask = IJ.createImage("binary mask", "8-bit black", width, height, nslices);
 
-        int numrois = rm.getCount();
-
-        for (int idx = 0; idx < numrois; idx++) {
-            Roi roi = rm.getRoi(idx);
-
-            UpdateMask(mask, roi, associate, idx);
-
-        }
+        UpdateMask(mask, rm.getRoisAsArray(), associate, 1);
 
         mask.setSlice(1);
         return mask;
@@ -96,13 +102,7 @@ public class Conversions {
 
         ImagePlus mask = IJ.createImage("binary mask", "8-bit black", width, height, nslices);
 
-        int numrois = roiarray.length;
-
-        for (int idx = 0; idx < numrois; idx++) {
-            Roi roi = roiarray[idx];
-
-            UpdateMask(mask, roi, associate, idx);
-        }
+        UpdateMask(mask, roiarray, associate, 1);
 
         mask.setSlice(1);
         return mask;
@@ -123,25 +123,600 @@ public class Conversions {
         ImagePlus mask = IJ.createImage("binary mask", "8-bit black", imp.getWidth(), imp.getHeight(), imp.getNSlices());
         mask.setCalibration(imp.getCalibration());
 
-        int numrois = roiarray.length;
+        UpdateMask(mask, roiarray, associate, 1);
 
-        for (int idx = 0; idx < numrois; idx++) {
-            Roi roi = roiarray[idx];
+        mask.setSlice(1);
+        return mask;
+    }
 
-            UpdateMask(mask, roi, associate, idx);
+
+    /**
+     * Parallel version of BinaryMaskFromRois(Roi[] roiarray, int width, int height, int nslices, boolean associate).
+     * Rois are grouped by their slice and each slice is filled directly in the ImageStack by its own worker thread.
+     * The result is identical to the sequential version.
+     *
+     * @param roiarray Array of rois
+     * @param width,   height, nslices: target dimensions
+     * @param associate if true the ROIs are only drawn in the associated slices, otherwise they are drawn in all slices.
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return mask. 8 bit binary mask with foreground (=roi regions) value 255, background=0. uncalibrated
+     */
+    static public ImagePlus BinaryMaskFromRois(Roi[] roiarray, int width, int height, int nslices, boolean associate, int parallelism) {
+
+        if (width < 1 || height < 1 || nslices < 1) {
+            IJ.log("Target size for mask is zero or negative! Returning null");
+            return null;
         }
 
+        ImagePlus mask = IJ.createImage("binary mask", "8-bit black", width, height, nslices);
+
+        UpdateMask(mask, roiarray, associate, parallelism);
+
         mask.setSlice(1);
         return mask;
     }
 
+    /**
+     * Parallel version of BinaryMaskFromRois(RoiManager rm, ImagePlus imp, boolean associate).
+     *
+     * @param rm  roi manager with rois
+     * @param imp sets the target size of mask.
+     * @param associate if true the ROIs are only drawn in the associated slices, otherwise they are drawn in all slices.
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return mask. 8 bit binary mask with foreground (=roi regions) value 255, background=0.
+     * mask is calibrated like imp.
+     */
+    static public ImagePlus BinaryMaskFromRois(RoiManager rm, ImagePlus imp, boolean associate, int parallelism) {
+        ImagePlus mask = IJ.createImage("binary mask", "8-bit black", imp.getWidth(), imp.getHeight(), imp.getNSlices());
+        mask.setCalibration(imp.getCalibration());
+
+        UpdateMask(mask, rm.getRoisAsArray(), associate, parallelism);
+
+        mask.setSlice(1);
+        return mask;
+    }
+
+
+    /** How rois are grouped into labels by the LabelImageFromRois functions */
+    public enum LabelGrouping {
+        /** every roi gets its own label (1,2,3,... in roi order) */
+        INDEX,
+        /** rois with the same name share a label, labels are numbered in order of first appearance. Unnamed rois get their own label */
+        NAME
+    }
+
+
+    /**
+     * Creates a label image of all roi's in the roi array: each roi (or group of rois) is drawn with its own label
+     * value 1,2,3,... . Overlapping rois: later rois overwrite earlier ones. Works in 2D & 3D.
+     *
+     * @param roiarray Array of rois
+     * @param width,   height, nslices: target dimensions
+     * @param associate if true the ROIs are only drawn in the associated slices, otherwise they are drawn in all slices.
+     * @param grouping how rois are assigned to labels
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return label image, background=0. 16 bit if the number of labels fits, otherwise 32 bit. uncalibrated
+     */
+    static public ImagePlus LabelImageFromRois(Roi[] roiarray, int width, int height, int nslices, boolean associate, LabelGrouping grouping, int parallelism) {
+
+        if (width < 1 || height < 1 || nslices < 1) {
+            IJ.log("Target size for mask is zero or negative! Returning null");
+            return null;
+        }
+
+        int[] labelIds = LabelIdsOfRois(roiarray, grouping);
+
+        int maxId = 0;
+        for (int id : labelIds) {
+            maxId = Math.max(maxId, id);
+        }
+        String type = (maxId <= 65535) ? "16-bit black" : "32-bit black";
+
+        ImagePlus labelImp = IJ.createImage("label image", type, width, height, nslices);
+
+        UpdateLabelImage(labelImp, roiarray, labelIds, associate, parallelism);
+
+        labelImp.setSlice(1);
+        return labelImp;
+    }
+
+    /**
+     * Creates a label image of all roi's in the roi array, see
+     * LabelImageFromRois(Roi[] roiarray, int width, int height, int nslices, boolean associate, LabelGrouping grouping, int parallelism)
+     *
+     * @param roiarray Array of rois
+     * @param imp:     sets target dimensions of the label image
+     * @param associate if true the ROIs are only drawn in the associated slices, otherwise they are drawn in all slices.
+     * @param grouping how rois are assigned to labels
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return label image, background=0. 16 bit if the number of labels fits, otherwise 32 bit.
+     * label image is calibrated like imp.
+     */
+    static public ImagePlus LabelImageFromRois(Roi[] roiarray, ImagePlus imp, boolean associate, LabelGrouping grouping, int parallelism) {
+        ImagePlus labelImp = LabelImageFromRois(roiarray, imp.getWidth(), imp.getHeight(), imp.getNSlices(), associate, grouping, parallelism);
+        labelImp.setCalibration(imp.getCalibration());
+        return labelImp;
+    }
+
+
+    /** Helper for LabelImageFromRois. Assigns a label value (1,2,3,...) to each roi.
+     */
+    private static int[] LabelIdsOfRois(Roi[] roiarray, LabelGrouping grouping) {
+        int[] labelIds = new int[roiarray.length];
+
+        Map<String, Integer> idsByName = new HashMap<>();
+        int nextId = 1;
+
+        for (int idx = 0; idx < roiarray.length; idx++) {
+            String name = roiarray[idx].getName();
+
+            if (grouping == LabelGrouping.NAME && name != null) {
+                Integer id = idsByName.get(name);
+                if (id == null) {
+                    id = nextId++;
+                    idsByName.put(name, id);
+                }
+                labelIds[idx] = id;
+            }
+            else {
+                labelIds[idx] = nextId++;
+            }
+        }
+
+        return labelIds;
+    }
+
+
+    /** Helper for LabelImageFromRois. Same slice association rules as UpdateMask, but each roi is drawn with its own
+     * value and in roi order (later rois overwrite earlier ones), also when it is drawn into all slices.
+     */
+    private static void UpdateLabelImage(ImagePlus labelImp, final Roi[] roiarray, final int[] labelIds, final boolean associate, final int parallelism) {
+        final int nslices = labelImp.getNSlices();
+        final ImageStack stack = labelImp.getStack();
+        TaskMonitor.Count("voxels rasterized", (long) labelImp.getWidth() * labelImp.getHeight() * nslices);
+
+        // roi indices per slice (index 1..nslices), in roi order
+        final List<List<Integer>> roisPerSlice = new ArrayList<>(nslices + 1);
+        for (int slice = 0; slice < nslices + 1; slice++) {
+            roisPerSlice.add(new ArrayList<Integer>());
+        }
+
+        // pixel runs of the rois which are drawn into all slices (null for associated rois)
+        final int[][] allSliceRuns = new int[roiarray.length][];
+        ImageProcessor scratch = null;
+
+        for (int idx = 0; idx < roiarray.length; idx++) {
+            Roi roi = roiarray[idx];
+            int targetSlice = TargetSlice(roi, idx, nslices, associate);
+
+            if (targetSlice > 0) {
+                // draw roi into single slice
+                roisPerSlice.get(targetSlice).add(idx);
+            }
+            else if (targetSlice == ALL_SLICES) {
+                // draw into all slices: rasterize once
+                if (scratch == null) {
+                    scratch = new ByteProcessor(labelImp.getWidth(), labelImp.getHeight());
+                    scratch.setValue(255);
+                }
+                byte[] scratchPixels = (byte[]) scratch.getPixels();
+                Arrays.fill(scratchPixels, (byte) 0);
+                scratch.fill(roi);
+                allSliceRuns[idx] = CoverageRuns(scratchPixels);
+
+                for (int slice = 1; slice < nslices + 1; slice++) {
+                    roisPerSlice.get(slice).add(idx);
+                }
+            }
+        }
+
+        ParallelSlices.ForEach(nslices, parallelism, slice -> {
+            // own processor on the stack pixels of this slice
+            ImageProcessor labelip = stack.getProcessor(slice);
+
+            for (int idx : roisPerSlice.get(slice)) {
+                if (allSliceRuns[idx] != null) {
+                    FillRuns(labelip.getPixels(), allSliceRuns[idx], labelIds[idx]);
+                }
+                else {
+                    labelip.setValue(labelIds[idx]);
+                    labelip.fill(roiarray[idx]);
+                }
+            }
+        });
+    }
+
+
+    /** Helper for the the BinaryMaskFromROIs function family. Sorts the rois by slice, then fills every slice
+     * processor of the stack in its own task (parallelism 1: in the calling thread). The current slice of mask is not
+     * changed.
+     * Rois which are drawn into all slices are rasterized only once into a 2d coverage mask, which is then copied into
+     * every slice as runs of foreground pixels.
+     */
+    private static void UpdateMask(ImagePlus mask, final Roi[] roiarray, final boolean associate, final int parallelism) {
+        final int nslices = mask.getNSlices();
+        final ImageStack stack = mask.getStack();
+        TaskMonitor.Count("voxels rasterized", (long) mask.getWidth() * mask.getHeight() * nslices);
+
+        // rois per slice (index 1..nslices), in roi order
+        final List<List<Roi>> roisPerSlice = new ArrayList<>(nslices + 1);
+        for (int slice = 0; slice < nslices + 1; slice++) {
+            roisPerSlice.add(new ArrayList<Roi>());
+        }
+
+        // rois which are drawn into all slices are collected in a single 2d coverage mask
+        ImageProcessor allSlices = null;
+
+        for (int idx = 0; idx < roiarray.length; idx++) {
+            Roi roi = roiarray[idx];
+            int targetSlice = TargetSlice(roi, idx, nslices, associate);
+
+            if (targetSlice > 0) {
+                // draw roi into single slice
+                roisPerSlice.get(targetSlice).add(roi);
+            }
+            else if (targetSlice == ALL_SLICES) {
+                // draw into all slices: rasterize once
+                if (allSlices == null) {
+                    allSlices = new ByteProcessor(mask.getWidth(), mask.getHeight());
+                    allSlices.setValue(255);
+                }
+                allSlices.fill(roi);
+            }
+        }
+
+        final int[] coverageRuns = (allSlices == null) ? new int[0] : CoverageRuns((byte[]) allSlices.getPixels());
+
+        ParallelSlices.ForEach(nslices, parallelism, slice -> {
+            // own processor on the stack pixels of this slice
+            ImageProcessor maskip = stack.getProcessor(slice);
+            maskip.setValue(255);
+            for (Roi roi : roisPerSlice.get(slice)) {
+                maskip.fill(roi);
+            }
+
+            FillRuns((byte[]) maskip.getPixels(), coverageRuns, (byte) 255);
+        });
+    }
+
+
+    /**
+     * Like BinaryMaskFromRois(Roi[] roiarray, int width, int height, int nslices, boolean associate, int parallelism),
+     * but creates a sparse run-length encoded mask instead of a dense 8 bit stack. Memory use scales with the
+     * foreground area, not with the volume. Use RleMask.toImagePlus() if a dense image is needed.
+     *
+     * @param roiarray Array of rois
+     * @param width,   height, nslices: target dimensions
+     * @param associate if true the ROIs are only drawn in the associated slices, otherwise they are drawn in all slices.
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return sparse mask
+     */
+    static public RleMask RleMaskFromRois(Roi[] roiarray, final int width, final int height, int nslices, boolean associate, int parallelism) {
+        if (width < 1 || height < 1 || nslices < 1) {
+            IJ.log("Target size for mask is zero or negative! Returning null");
+            return null;
+        }
+
+        final RleMask mask = new RleMask(width, height, nslices);
+        TaskMonitor.Count("voxels rasterized", (long) width * height * nslices);
+
+        // rois per slice (index 1..nslices), in roi order
+        final List<List<Roi>> roisPerSlice = new ArrayList<>(nslices + 1);
+        for (int slice = 0; slice < nslices + 1; slice++) {
+            roisPerSlice.add(new ArrayList<Roi>());
+        }
+
+        // rois which are drawn into all slices are rasterized once
+        final List<int[][]> allSliceRuns = new ArrayList<>();
+
+        for (int idx = 0; idx < roiarray.length; idx++) {
+            Roi roi = roiarray[idx];
+            int targetSlice = TargetSlice(roi, idx, nslices, associate);
+
+            if (targetSlice > 0) {
+                roisPerSlice.get(targetSlice).add(roi);
+            }
+            else if (targetSlice == ALL_SLICES) {
+                allSliceRuns.add(RleMask.RoiRuns(roi, width, height));
+            }
+        }
+
+        ParallelSlices.ForEach(nslices, parallelism, slice -> {
+            for (Roi roi : roisPerSlice.get(slice)) {
+                mask.addRoi(slice, roi);
+            }
+            for (int[][] roiRuns : allSliceRuns) {
+                for (int y = 0; y < height; y++) {
+                    if (roiRuns[y] == null) {
+                        continue;
+                    }
+                    for (int r = 0; r < roiRuns[y].length; r += 2) {
+                        mask.addRun(slice, y, roiRuns[y][r], roiRuns[y][r + 1]);
+                    }
+                }
+            }
+        });
+
+        return mask;
+    }
+
 
-    /** Helper for the the BinaryMaskFromROIs function family. Draws a single roi.
+    /**
+     * Like RoisFromBinaryMask(ImagePlus mask, int parallelism), but for a sparse run-length encoded mask. Only the
+     * bounding box of the foreground of one slice per worker is densified at a time.
+     *
+     * @param mask sparse mask
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return roiarray an array with all roi's, in slice order
      */
-    private static void UpdateMask(ImagePlus mask, final Roi roi, final boolean associate, final int idx) {
+    static public Roi[] RoisFromRleMask(final RleMask mask, int parallelism) {
+        final int nSlices = mask.getNSlices();
+        final Roi[] perSlice = new Roi[nSlices];
+
+        ParallelSlices.ForEach(nSlices, parallelism, slice -> {
+            Rectangle bounds = mask.getBounds(slice);
+            if (bounds == null) {
+                return;
+            }
 
-        int nslices=mask.getNSlices();
+            ImageProcessor ip = mask.getSliceProcessor(slice, bounds);
+            Roi roi = TraceRoi(ip, 255, 255, null);
 
+            if (roi != null) {
+                // shift back from bounds to image coordinates
+                Rectangle roiBounds = roi.getBounds();
+                roi.setLocation(roiBounds.x + bounds.x, roiBounds.y + bounds.y);
+                if (nSlices > 1) {
+                    roi.setPosition(1, slice, 1);
+                }
+            }
+            perSlice[slice - 1] = roi;
+        });
+
+        // skip null rois
+        List<Roi> roiList = new ArrayList<>();
+        for (Roi roi : perSlice) {
+            if (roi != null) {
+                roiList.add(roi);
+            }
+        }
+
+        TaskMonitor.Count("rois traced", roiList.size());
+
+        // convert to array
+        Roi[] roiArray = roiList.toArray(new Roi[roiList.size()]);
+
+        return roiArray;
+    }
+
+
+    /**
+     * Like BinaryMaskFromRois(Roi[] roiarray, int width, int height, int nslices, boolean associate, int parallelism),
+     * but creates a bit-packed mask (1 bit per voxel) instead of an 8 bit stack. The roi rows are filled a 64 bit word
+     * at a time. Use BitMask.toImagePlus() to show the mask.
+     *
+     * @param roiarray Array of rois
+     * @param width,   height, nslices: target dimensions
+     * @param associate if true the ROIs are only drawn in the associated slices, otherwise they are drawn in all slices.
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return bit mask
+     */
+    static public BitMask BitMaskFromRois(Roi[] roiarray, final int width, final int height, int nslices, boolean associate, int parallelism) {
+        if (width < 1 || height < 1 || nslices < 1) {
+            IJ.log("Target size for mask is zero or negative! Returning null");
+            return null;
+        }
+
+        final BitMask mask = new BitMask(width, height, nslices);
+        TaskMonitor.Count("voxels rasterized", (long) width * height * nslices);
+
+        // rois per slice (index 1..nslices), in roi order
+        final List<List<Roi>> roisPerSlice = new ArrayList<>(nslices + 1);
+        for (int slice = 0; slice < nslices + 1; slice++) {
+            roisPerSlice.add(new ArrayList<Roi>());
+        }
+
+        // rois which are drawn into all slices are rasterized once
+        final List<int[][]> allSliceRuns = new ArrayList<>();
+
+        for (int idx = 0; idx < roiarray.length; idx++) {
+            Roi roi = roiarray[idx];
+            int targetSlice = TargetSlice(roi, idx, nslices, associate);
+
+            if (targetSlice > 0) {
+                roisPerSlice.get(targetSlice).add(roi);
+            }
+            else if (targetSlice == ALL_SLICES) {
+                allSliceRuns.add(RleMask.RoiRuns(roi, width, height));
+            }
+        }
+
+        ParallelSlices.ForEach(nslices, parallelism, slice -> {
+            for (Roi roi : roisPerSlice.get(slice)) {
+                mask.addRoi(slice, roi);
+            }
+            for (int[][] roiRuns : allSliceRuns) {
+                mask.addRuns(slice, roiRuns);
+            }
+        });
+
+        return mask;
+    }
+
+
+    /**
+     * Like RoisFromBinaryMask(ImagePlus mask, ContourTracer tracer, int parallelism), for a bit-packed mask: the runs
+     * of each row are found a word at a time and only the bounding box of the foreground of one slice per worker is
+     * densified for tracing.
+     *
+     * @param mask bit mask (e.g. from BitMask.fromView)
+     * @param tracer contour tracer, null: one (composite) roi per slice from ThresholdToSelection
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return roiarray an array with all roi's, in slice order
+     */
+    static public Roi[] RoisFromBitMask(final BitMask mask, final ContourTracer tracer, int parallelism) {
+        final int nSlices = mask.getNSlices();
+        final Roi[][] perSlice = new Roi[nSlices][];
+
+        ParallelSlices.ForEach(nSlices, parallelism, slice -> {
+            Rectangle bounds = mask.getBounds(slice);
+            if (bounds == null) {
+                perSlice[slice - 1] = new Roi[0];
+                return;
+            }
+
+            ImageProcessor ip = mask.getSliceProcessor(slice, bounds);
+            TaskMonitor.Count("voxels traced", (long) bounds.width * bounds.height);
+            Roi[] rois = TraceRois(ip, 255, 255, null, tracer);
+
+            for (Roi roi : rois) {
+                // shift back from bounds to image coordinates
+                Rectangle roiBounds = roi.getBounds();
+                roi.setLocation(roiBounds.x + bounds.x, roiBounds.y + bounds.y);
+                if (nSlices > 1) {
+                    roi.setPosition(1, slice, 1);
+                }
+            }
+            perSlice[slice - 1] = rois;
+        });
+
+        List<Roi> roiList = new ArrayList<>();
+        for (Roi[] rois : perSlice) {
+            roiList.addAll(Arrays.asList(rois));
+        }
+        return roiList.toArray(new Roi[roiList.size()]);
+    }
+
+
+    /** File formats of BinaryMaskFromRoisToDisk */
+    public enum DiskFormat {
+        /** one 8 bit tiff file per slice (mask_0001.tif, mask_0002.tif, ...) in a directory */
+        TIFF_SEQUENCE,
+        /** a single file with the raw 8 bit slices one after the other, no header */
+        RAW
+    }
+
+
+    /**
+     * Like BinaryMaskFromRois(Roi[] roiarray, int width, int height, int nslices, boolean associate), but the mask is
+     * written to disk slice by slice instead of being built in memory: the rois are sorted by slice, every slice is
+     * rasterized into a single reused buffer and written before the next one is drawn. Memory use is one slice.
+     *
+     * @param roiarray Array of rois
+     * @param width,   height, nslices: target dimensions
+     * @param associate if true the ROIs are only drawn in the associated slices, otherwise they are drawn in all slices.
+     * @param target output directory (TIFF_SEQUENCE) or output file (RAW)
+     * @param format file format
+     * @return the written mask opened as a virtual stack (slices are read from disk on demand). uncalibrated
+     * @throws IOException if the mask could not be written
+     */
+    static public ImagePlus BinaryMaskFromRoisToDisk(Roi[] roiarray, int width, int height, int nslices, boolean associate,
+                                                     File target, DiskFormat format) throws IOException {
+        if (width < 1 || height < 1 || nslices < 1) {
+            IJ.log("Target size for mask is zero or negative! Returning null");
+            return null;
+        }
+
+        // sort rois by slice (index 1..nslices), in roi order
+        List<List<Roi>> roisPerSlice = new ArrayList<>(nslices + 1);
+        for (int slice = 0; slice < nslices + 1; slice++) {
+            roisPerSlice.add(new ArrayList<Roi>());
+        }
+
+        ByteProcessor maskip = new ByteProcessor(width, height);
+        maskip.setValue(255);
+        byte[] pixels = (byte[]) maskip.getPixels();
+
+        // rois which are drawn into all slices are rasterized once
+        boolean hasAllSliceRois = false;
+        for (int idx = 0; idx < roiarray.length; idx++) {
+            Roi roi = roiarray[idx];
+            int targetSlice = TargetSlice(roi, idx, nslices, associate);
+
+            if (targetSlice > 0) {
+                roisPerSlice.get(targetSlice).add(roi);
+            }
+            else if (targetSlice == ALL_SLICES) {
+                maskip.fill(roi);
+                hasAllSliceRois = true;
+            }
+        }
+        int[] coverageRuns = hasAllSliceRois ? CoverageRuns(pixels) : new int[0];
+
+        String[] sliceFiles = new String[nslices];
+        TaskMonitor.Count("voxels rasterized", (long) width * height * nslices);
+
+        if (format == DiskFormat.TIFF_SEQUENCE && !target.isDirectory() && !target.mkdirs()) {
+            throw new IOException("Could not create directory " + target);
+        }
+
+        OutputStream rawOut = (format == DiskFormat.RAW) ? new BufferedOutputStream(new FileOutputStream(target)) : null;
+        try {
+            for (int slice = 1; slice < nslices + 1; slice++) {
+                TaskMonitor.CheckCanceled();
+                TaskMonitor.Progress(slice - 1, nslices);
+
+                // draw the slice into the reused buffer
+                Arrays.fill(pixels, (byte) 0);
+                for (Roi roi : roisPerSlice.get(slice)) {
+                    maskip.fill(roi);
+                }
+                FillRuns(pixels, coverageRuns, (byte) 255);
+
+                if (rawOut != null) {
+                    rawOut.write(pixels);
+                }
+                else {
+                    sliceFiles[slice - 1] = String.format("mask_%04d.tif", slice);
+                    File sliceFile = new File(target, sliceFiles[slice - 1]);
+                    if (!new FileSaver(new ImagePlus(sliceFiles[slice - 1], maskip)).saveAsTiff(sliceFile.getPath())) {
+                        throw new IOException("Could not write " + sliceFile);
+                    }
+                }
+
+                // the rois of this slice are no longer needed
+                roisPerSlice.set(slice, null);
+            }
+        } finally {
+            if (rawOut != null) {
+                rawOut.close();
+            }
+        }
+
+        // open the result as virtual stack
+        ImageStack stack;
+        if (format == DiskFormat.RAW) {
+            FileInfo fi = new FileInfo();
+            fi.fileFormat = FileInfo.RAW;
+            fi.fileType = FileInfo.GRAY8;
+            fi.width = width;
+            fi.height = height;
+            fi.nImages = nslices;
+            fi.directory = target.getAbsoluteFile().getParent() + File.separator;
+            fi.fileName = target.getName();
+            stack = new FileInfoVirtualStack(fi, false);
+        }
+        else {
+            VirtualStack virtualStack = new VirtualStack(width, height, null, target.getAbsolutePath() + File.separator);
+            for (String sliceFile : sliceFiles) {
+                virtualStack.addSlice(sliceFile);
+            }
+            stack = virtualStack;
+        }
+
+        return new ImagePlus("binary mask", stack);
+    }
+
+
+    /** Return values of TargetSlice */
+    private static final int ALL_SLICES = 0;
+    private static final int NO_SLICE = -1;
+
+    /** Helper for the functions which draw rois into a stack. Decides into which slice a roi is drawn.
+     * @return the (1-based) slice, ALL_SLICES, or NO_SLICE if the associated slice is outside the stack.
+     * In 2D a roi always goes into the single slice.
+     */
+    static int TargetSlice(Roi roi, int idx, int nslices, boolean associate) {
         int roislice = roi.getZPosition();
 
         // check if roi has an associated slice
@@ -151,26 +726,67 @@ public class Conversions {
             associateThisRoi=false;
         }
 
-        // draw roi into single slice
         if (associateThisRoi) {
-            if (roislice<=nslices){
-                mask.setSliceWithoutUpdate(roislice);
-                ImageProcessor maskip = mask.getProcessor();
-                maskip.setValue(255);
-                maskip.fill(roi);
+            if (roislice<=nslices) {
+                return Math.max(roislice, 1);
             }
+            return NO_SLICE;
         }
-        else {
-            // draw into all slices
-            for (int sliceid = 1; sliceid < 1+nslices; sliceid++) {
-                mask.setSlice(sliceid);
-                ImageProcessor maskip = mask.getProcessor();
-                maskip.setValue(255);
-                maskip.fill(roi);
+        return ALL_SLICES;
+    }
+
+
+    /** Helper for UpdateMask. Encodes the non-zero pixels of a 2d mask as runs.
+     * @return pairs of (start index, length)
+     */
+    private static int[] CoverageRuns(byte[] coverage) {
+        int[] runs = new int[16];
+        int nvalues = 0;
+
+        int i = 0;
+        while (i < coverage.length) {
+            if (coverage[i] == 0) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < coverage.length && coverage[i] != 0) {
+                i++;
+            }
+            if (nvalues + 2 > runs.length) {
+                runs = Arrays.copyOf(runs, 2 * runs.length);
             }
+            runs[nvalues++] = start;
+            runs[nvalues++] = i - start;
+        }
+
+        return Arrays.copyOf(runs, nvalues);
+    }
+
+
+    /** Helper for UpdateMask. Sets all pixels of the given runs (see CoverageRuns) to value.
+     */
+    private static void FillRuns(byte[] pixels, int[] runs, byte value) {
+        for (int r = 0; r < runs.length; r += 2) {
+            Arrays.fill(pixels, runs[r], runs[r] + runs[r + 1], value);
         }
     }
 
+
+    /** Helper for UpdateLabelImage. Sets all pixels of the given runs (see CoverageRuns) of a 16 or 32 bit slice to value.
+     */
+    private static void FillRuns(Object pixels, int[] runs, int value) {
+        for (int r = 0; r < runs.length; r += 2) {
+            if (pixels instanceof short[]) {
+                Arrays.fill((short[]) pixels, runs[r], runs[r] + runs[r + 1], (short) value);
+            }
+            else {
+                Arrays.fill((float[]) pixels, runs[r], runs[r] + runs[r + 1], (float) value);
+            }
+        }
+    }
+
+
     /**
      * Creates a ROI from each slice in a binary image and adds the ROIs (associated to slices) to the ROI manager.
      * Null Rois (from black slices) are skipped.
@@ -181,24 +797,155 @@ public class Conversions {
      *             to 1, therefore a label image as input works as well.
      */
     static public void RoisFromBinaryMask(RoiManager rm, ImagePlus mask) {
-        int nSlices = mask.getNSlices();
+        RoisFromBinaryMask(rm, mask, 1);
+    }
 
-        for (int slice = 1; slice < nSlices + 1; slice++) {
-            mask.setSliceWithoutUpdate(slice);
-            ImageProcessor ip = mask.getProcessor();
 
-            // threshold at 1
-            ip.setThreshold(1, ip.maxValue(), ImageProcessor.NO_LUT_UPDATE); // maxValue() = max possible value
+    /**
+     * Like RoisFromBinaryMask(RoiManager rm, ImagePlus mask), but the slices are traced in parallel.
+     * The Rois are added to the ROI manager in slice order, from the calling thread.
+     *
+     * @param rm   Roi manager where Rois will be stored
+     * @param mask binary image (e.g. 0 background, 255 foreground). Image threshold for roi creation is internally set
+     *             to 1, therefore a label image as input works as well.
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     */
+    static public void RoisFromBinaryMask(RoiManager rm, ImagePlus mask, int parallelism) {
+        RoisFromBinaryMask(rm, mask, null, parallelism);
+    }
 
-            Roi roi = new ThresholdToSelection().convert(ip);
 
-            if (roi != null) {
+    /**
+     * Like RoisFromBinaryMask(RoiManager rm, ImagePlus mask, int parallelism), but traces with a ContourTracer:
+     * one roi per connected component and slice.
+     *
+     * @param rm   Roi manager where Rois will be stored
+     * @param mask binary image (e.g. 0 background, 255 foreground). Threshold is 1.
+     * @param tracer contour tracer, null: one (composite) roi per slice from ThresholdToSelection
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     */
+    static public void RoisFromBinaryMask(RoiManager rm, ImagePlus mask, ContourTracer tracer, int parallelism) {
+        Roi[] roiArray = RoisFromBinaryMask(mask, tracer, parallelism);
+
+        // with a single refresh of the roi manager
+        RoiManagerBulkInsert.AddAll(rm, roiArray);
+    }
+
+
+    /**
+     * Streaming version of RoisFromBinaryMask(RoiManager rm, ImagePlus mask, int parallelism) for masks which do not
+     * fit into memory, e.g. virtual stacks: slices are loaded and traced in windows, the rois are added to the ROI
+     * manager at once at the end.
+     * Hyperstacks are streamed volume by volume, see HyperstackConversions.RoisFromBinaryMaskStreaming.
+     *
+     * @param rm   Roi manager where Rois will be stored
+     * @param mask binary image (e.g. 0 background, 255 foreground), typically a virtual stack.
+     * @param batchSize number of Rois collected at once (progress updates)
+     * @param parallelism number of slices traced (and held in memory) at the same time
+     * @return number of Rois added
+     */
+    static public int RoisFromBinaryMaskStreaming(final RoiManager rm, final ImagePlus mask, int batchSize, int parallelism) {
+        try (RoiManagerBulkInsert insert = new RoiManagerBulkInsert(rm, 0)) {
+            return HyperstackConversions.RoisFromBinaryMaskStreaming(mask, batchSize, parallelism, null, insert);
+        }
+    }
+
+
+    /**
+     * Streaming version of RoisFromBinaryMask(ImagePlus mask) which reads the slices of an ImageStack (e.g. a
+     * VirtualStack) one at a time, see RoisFromBinaryMaskStreaming(IntFunction, int, int, int, Consumer).
+     *
+     * @param stack binary stack (e.g. 0 background, 255 foreground)
+     * @param batchSize number of Rois passed to consumer at once
+     * @param parallelism number of slices traced (and held in memory) at the same time
+     * @param consumer receives the Rois in slice order, in batches
+     * @return number of Rois created
+     */
+    static public int RoisFromBinaryMaskStreaming(final ImageStack stack, int batchSize, int parallelism, Consumer<Roi[]> consumer) {
+        return RoisFromBinaryMaskStreaming(stack::getProcessor, stack.getSize(), batchSize, parallelism, consumer);
+    }
+
+
+    /**
+     * Streaming version of RoisFromBinaryMask(ImagePlus mask). The slices are requested from sliceSupplier in
+     * windows of parallelism slices, traced in parallel and passed on in slice order, so at most parallelism slices
+     * are in memory at any time. The slices are loaded one after another in the calling thread (virtual stack readers
+     * are not thread-safe), only the tracing runs in parallel. Null Rois (from black slices) are skipped.
+     * Image threshold for roi creation is 1, therefore label slices work as well.
+     *
+     * @param sliceSupplier returns the processor of a (1-based) slice. Called from the calling thread, in slice order.
+     * @param nSlices number of slices. Rois are associated with slices if nSlices > 1.
+     * @param batchSize number of Rois passed to consumer at once
+     * @param parallelism number of slices traced (and held in memory) at the same time
+     * @param consumer receives the Rois in slice order, in batches of batchSize (the last batch may be smaller).
+     *                 Called from the calling thread.
+     * @return number of Rois created
+     */
+    static public int RoisFromBinaryMaskStreaming(final IntFunction<ImageProcessor> sliceSupplier, final int nSlices,
+                                                  int batchSize, int parallelism, Consumer<Roi[]> consumer) {
+        return RoisFromBinaryMaskStreaming(sliceSupplier, nSlices, batchSize, parallelism, null, consumer);
+    }
+
+
+    /**
+     * Like RoisFromBinaryMaskStreaming(IntFunction, int, int, int, Consumer), but traces with a ContourTracer:
+     * one roi per connected component and slice.
+     *
+     * @param tracer contour tracer, null: one (composite) roi per slice from ThresholdToSelection
+     */
+    static public int RoisFromBinaryMaskStreaming(final IntFunction<ImageProcessor> sliceSupplier, final int nSlices,
+                                                  int batchSize, int parallelism, final ContourTracer tracer,
+                                                  Consumer<Roi[]> consumer) {
+        int window = Math.max(parallelism, 1);
+        batchSize = Math.max(batchSize, 1);
+
+        List<Roi> batch = new ArrayList<>(batchSize);
+        int count = 0;
+        TaskMonitor.Progress(0, nSlices);
+
+        for (int first = 1; first < nSlices + 1; first += window) {
+            final int from = first;
+            final Roi[][] windowRois = new Roi[Math.min(window, nSlices - first + 1)][];
+
+            // load sequentially, trace in parallel
+            final ImageProcessor[] windowSlices = new ImageProcessor[windowRois.length];
+            for (int idx = 0; idx < windowSlices.length; idx++) {
+                windowSlices[idx] = sliceSupplier.apply(from + idx);
+            }
+
+            ParallelSlices.ForEach(windowRois.length, parallelism, idx -> {
+                int slice = from + idx - 1;
+                ImageProcessor ip = windowSlices[idx - 1];
+
+                // threshold at 1
+                Roi[] rois = TraceRois(ip, 1, ip.maxValue(), null, tracer); // maxValue() = max possible value
+
                 if (nSlices > 1) {
-                    roi.setPosition(1, slice, 1);
+                    for (Roi roi : rois) {
+                        roi.setPosition(1, slice, 1);
+                    }
+                }
+                windowRois[idx - 1] = rois;
+            });
+
+            for (Roi[] sliceRois : windowRois) {
+                for (Roi roi : sliceRois) {
+                    batch.add(roi);
+                    count++;
+                    if (batch.size() == batchSize) {
+                        consumer.accept(batch.toArray(new Roi[batch.size()]));
+                        batch.clear();
+                    }
                 }
-                rm.add(mask, roi, -1);
             }
+            TaskMonitor.Progress(from + windowRois.length - 1, nSlices);
+        }
+
+        if (!batch.isEmpty()) {
+            consumer.accept(batch.toArray(new Roi[batch.size()]));
         }
+
+        return count;
     }
 
 
@@ -212,32 +959,41 @@ public class Conversions {
      * @return roiarray an array with all roi's
      */
     static public Roi[] RoisFromBinaryMask(ImagePlus mask) {
+        return RoisFromBinaryMask(mask, 1);
+    }
 
-        List<Roi> roiList = new ArrayList<>();
-        
-        int nSlices = mask.getNSlices();
-
-        for (int slice = 1; slice < nSlices + 1; slice++) {
-            mask.setSliceWithoutUpdate(slice);
-            ImageProcessor ip = mask.getProcessor();
 
-            // threshold at 1
-            ip.setThreshold(1, ip.maxValue(), ImageProcessor.NO_LUT_UPDATE); // maxValue() = max possible value
+    /**
+     * Like RoisFromBinaryMask(ImagePlus mask), but the slices are traced in parallel. Each worker traces its own slice
+     * processor from the ImageStack, the current slice and threshold of mask are not changed.
+     *
+     * @param mask binary image (e.g. 0 background, 255 foreground). Image threshold for roi creation is internally set
+     *             to 1, therefore a label image as input works as well.
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return roiarray an array with all roi's, in slice order
+     */
+    static public Roi[] RoisFromBinaryMask(ImagePlus mask, int parallelism) {
+        return RoisFromBinaryMask(mask, null, parallelism);
+    }
 
-            Roi roi = new ThresholdToSelection().convert(ip);
 
-            if (roi != null) {
-                if (nSlices > 1) {
-                    roi.setPosition(1, slice, 1);
-                }
-                roiList.add(roi);
-            }
-        }
+    /**
+     * Like RoisFromBinaryMask(ImagePlus mask, int parallelism), but traces with a ContourTracer: one roi per
+     * connected component and slice, optionally with simplified outlines.
+     *
+     * @param mask binary image (e.g. 0 background, 255 foreground). Threshold is 1.
+     * @param tracer contour tracer, null: one (composite) roi per slice from ThresholdToSelection
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return roiarray an array with all roi's, in slice order
+     */
+    static public Roi[] RoisFromBinaryMask(ImagePlus mask, ContourTracer tracer, int parallelism) {
+        ImageStack stack = mask.getStack();
+        int nSlices = mask.getNSlices();
 
-        // convert to array
-        Roi[] roiArray = roiList.toArray(new Roi[roiList.size()]);
+        // threshold at 1
+        double upper = stack.getProcessor(1).maxValue(); // maxValue() = max possible value
 
-        return roiArray;
+        return TraceSlices(stack, nSlices, 1, nSlices, 1, upper, null, tracer, parallelism);
     }
 
 
@@ -251,26 +1007,203 @@ public class Conversions {
      * @return roiarray an array with all roi's
      */
     static public Roi[] RoisFromOneLabel(ImagePlus labelImp, int labelId) {
+        return RoisFromOneLabel(labelImp, labelId, 1);
+    }
 
-        List<Roi> roiList = new ArrayList<>();
 
+    /**
+     * Like RoisFromOneLabel(ImagePlus labelImp, int labelId), but the slices are traced in parallel. Each worker
+     * traces its own slice processor from the ImageStack, the current slice and threshold of labelImp are not changed.
+     *
+     * @param labelImp label image (connected components) with regions of value 1,2,3,....
+     * @param labelId region for which Rois are extracted
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return roiarray an array with all roi's, in slice order
+     */
+    static public Roi[] RoisFromOneLabel(ImagePlus labelImp, int labelId, int parallelism) {
         int nSlices = labelImp.getNSlices();
 
-        for (int slice = 1; slice < nSlices + 1; slice++) {
-            labelImp.setSliceWithoutUpdate(slice);
-            ImageProcessor ip = labelImp.getProcessor();
+        // threshold at labelId
+        return TraceSlices(labelImp.getStack(), nSlices, 1, nSlices, labelId, labelId+0.1, null, null, parallelism);
+    }
 
-            // threshold at labelId
-            ip.setThreshold(labelId, labelId+0.1, ImageProcessor.NO_LUT_UPDATE);
 
-            Roi roi = new ThresholdToSelection().convert(ip);
+    /**
+     * Like RoisFromOneLabel(ImagePlus labelImp, int labelId) but uses a LabelIndex to trace the label only on the
+     * slices where it occurs and only inside its xy bounding box.
+     * Rois are returned as array and associated with slices. Null Rois (from black slices) are skipped.
+     * Works in 2D & 3D
+     *
+     * @param labelImp label image (connected components) with regions of value 1,2,3,....
+     * @param labelId region for which Rois are extracted
+     * @param index label index of labelImp, see LabelIndex.build
+     * @return roiarray an array with all roi's (empty if labelId does not occur in the image)
+     */
+    static public Roi[] RoisFromOneLabel(ImagePlus labelImp, int labelId, LabelIndex index) {
+
+        LabelIndex.Region region = index.getRegion(labelId);
+        if (region == null) {
+            return new Roi[0];
+        }
+
+        return TraceSlices(labelImp.getStack(), labelImp.getNSlices(), region.getZMin(), region.getZMax(),
+                labelId, labelId+0.1, region.getBounds(), null, 1);
+    }
+
+
+    /**
+     * Like RoisFromOneLabel(ImagePlus labelImp, int labelId) but extracts the Rois of all labels in a single pass.
+     * A LabelIndex is built first (one scan of the image), then each slice is visited once and every label occurring
+     * in that slice's z-range is traced inside its bounding box only.
+     * Rois are associated with slices. Null Rois (labels absent from a slice) are skipped.
+     * Works in 2D & 3D
+     *
+     * @param labelImp label image (connected components) with regions of value 1,2,3,....
+     * @return map from label id to the array of its rois (in slice order). Labels are sorted in ascending order.
+     */
+    static public Map<Integer, Roi[]> RoisFromAllLabels(ImagePlus labelImp) {
+        return RoisFromAllLabels(labelImp, LabelIndex.build(labelImp), 1);
+    }
+
+
+    /**
+     * Like RoisFromAllLabels(ImagePlus labelImp) but with an already computed LabelIndex.
+     *
+     * @param labelImp label image (connected components) with regions of value 1,2,3,....
+     * @param index label index of labelImp, see LabelIndex.build
+     * @return map from label id to the array of its rois (in slice order). Labels are sorted in ascending order.
+     */
+    static public Map<Integer, Roi[]> RoisFromAllLabels(ImagePlus labelImp, LabelIndex index) {
+        return RoisFromAllLabels(labelImp, index, 1);
+    }
+
+
+    /**
+     * Like RoisFromAllLabels(ImagePlus labelImp, LabelIndex index), but the slices are traced in parallel. Each worker
+     * traces its own slice processor from the ImageStack, the current slice and threshold of labelImp are not changed.
+     *
+     * @param labelImp label image (connected components) with regions of value 1,2,3,....
+     * @param index label index of labelImp, see LabelIndex.build
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return map from label id to the array of its rois (in slice order). Labels are sorted in ascending order.
+     */
+    static public Map<Integer, Roi[]> RoisFromAllLabels(ImagePlus labelImp, LabelIndex index, int parallelism) {
+        return RoisFromAllLabels(labelImp, index, null, parallelism);
+    }
+
+
+    /**
+     * Like RoisFromAllLabels(ImagePlus labelImp, LabelIndex index, int parallelism), but traces with a ContourTracer:
+     * one roi per connected component of a label and slice, optionally with simplified outlines.
+     *
+     * @param labelImp label image (connected components) with regions of value 1,2,3,....
+     * @param index label index of labelImp, see LabelIndex.build
+     * @param tracer contour tracer, null: one (composite) roi per label and slice from ThresholdToSelection
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return map from label id to the array of its rois (in slice order). Labels are sorted in ascending order.
+     */
+    static public Map<Integer, Roi[]> RoisFromAllLabels(ImagePlus labelImp, LabelIndex index, final ContourTracer tracer, int parallelism) {
+        final ImageStack stack = labelImp.getStack();
+        final int nSlices = labelImp.getNSlices();
+
+        final List<List<LabelIndex.Region>> regionsPerSlice = index.getRegionsPerSlice();
+
+        // per slice: the rois of each label of that slice
+        @SuppressWarnings("unchecked")
+        final Map<Integer, Roi[]>[] roisPerSlice = new Map[nSlices];
+
+        ParallelSlices.ForEach(nSlices, parallelism, slice -> {
+            List<LabelIndex.Region> regions = regionsPerSlice.get(slice);
+            Map<Integer, Roi[]> sliceRois = new HashMap<>();
+            roisPerSlice[slice - 1] = sliceRois;
+            if (regions.isEmpty()) {
+                return;
+            }
+
+            // own processor: the threshold state of labelImp is not touched
+            ImageProcessor ip = stack.getProcessor(slice);
+
+            for (LabelIndex.Region region : regions) {
+                TaskMonitor.CheckCanceled();
+                int labelId = region.getLabel();
+
+                Roi[] rois = TraceRois(ip, labelId, labelId+0.1, region.getBounds(), tracer);
 
-            if (roi != null) {
                 if (nSlices > 1) {
+                    for (Roi roi : rois) {
+                        roi.setPosition(1, slice, 1);
+                    }
+                }
+                sliceRois.put(labelId, rois);
+            }
+        });
+
+        return CollectPerLabel(Arrays.asList(roisPerSlice));
+    }
+
+
+    /**
+     * Helper for the label extraction functions: joins partial results (per slice, block or volume) per label, in the
+     * order of the parts. Labels without rois are left out.
+     *
+     * @param parts rois per label of each part
+     * @return map from label id to the array of its rois. Labels are sorted in ascending order.
+     */
+    static Map<Integer, Roi[]> CollectPerLabel(List<Map<Integer, Roi[]>> parts) {
+        Map<Integer, List<Roi>> roiLists = new TreeMap<>();
+        for (Map<Integer, Roi[]> part : parts) {
+            for (Map.Entry<Integer, Roi[]> entry : part.entrySet()) {
+                if (entry.getValue().length == 0) {
+                    continue;
+                }
+                List<Roi> roiList = roiLists.get(entry.getKey());
+                if (roiList == null) {
+                    roiList = new ArrayList<>();
+                    roiLists.put(entry.getKey(), roiList);
+                }
+                roiList.addAll(Arrays.asList(entry.getValue()));
+            }
+        }
+
+        Map<Integer, Roi[]> roiArrays = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<Roi>> entry : roiLists.entrySet()) {
+            List<Roi> roiList = entry.getValue();
+            roiArrays.put(entry.getKey(), roiList.toArray(new Roi[roiList.size()]));
+        }
+        return roiArrays;
+    }
+
+
+    /** Helper for the roi extraction functions. Traces the slices from..to (1-based, inclusive) of stack, each slice in
+     * its own task. Rois are associated with their slice if nSlices > 1.
+     * @return rois in slice order. Empty slices (no pixel in threshold range) have no roi.
+     */
+    private static Roi[] TraceSlices(final ImageStack stack, final int nSlices, final int from, final int to,
+                                     final double lower, final double upper, final Rectangle box,
+                                     final ContourTracer tracer, int parallelism) {
+        final Roi[][] perSlice = new Roi[Math.max(to - from + 1, 0)][];
+        long area = (box == null) ? (long) stack.getWidth() * stack.getHeight() : (long) box.width * box.height;
+        TaskMonitor.Count("voxels traced", area * perSlice.length);
+
+        ParallelSlices.ForEach(perSlice.length, parallelism, idx -> {
+            int slice = from + idx - 1;
+
+            // own processor: the threshold state of the image is not touched
+            ImageProcessor ip = stack.getProcessor(slice);
+
+            Roi[] rois = TraceRois(ip, lower, upper, box, tracer);
+
+            if (nSlices > 1) {
+                for (Roi roi : rois) {
                     roi.setPosition(1, slice, 1);
                 }
-                roiList.add(roi);
             }
+            perSlice[idx - 1] = rois;
+        });
+
+        List<Roi> roiList = new ArrayList<>();
+        for (Roi[] rois : perSlice) {
+            roiList.addAll(Arrays.asList(rois));
         }
 
         // convert to array
@@ -279,4 +1212,50 @@ public class Conversions {
         return roiArray;
     }
 
+
+    /** Helper for the roi extraction functions. Traces the pixels of ip with lower <= value <= upper inside box
+     * (box==null: whole slice) with tracer, or with TraceRoi if tracer is null.
+     * @return rois in image coordinates: one per connected component (tracer), or a single roi (TraceRoi). Empty if
+     * no pixel is in the threshold range.
+     */
+    static Roi[] TraceRois(ImageProcessor ip, double lower, double upper, Rectangle box, ContourTracer tracer) {
+        Roi[] rois;
+        if (tracer != null) {
+            rois = tracer.trace(ip, lower, upper, box);
+        } else {
+            Roi roi = TraceRoi(ip, lower, upper, box);
+            rois = (roi == null) ? new Roi[0] : new Roi[]{roi};
+        }
+        TaskMonitor.Count("rois traced", rois.length);
+        return rois;
+    }
+
+
+    /** Helper for the roi extraction functions. Creates a roi of all pixels of ip with lower <= value <= upper,
+     * looking only inside box (box==null: whole slice). The roi is in image coordinates.
+     * ip must be a processor owned by the caller (its roi and threshold are changed).
+     */
+    static Roi TraceRoi(ImageProcessor ip, double lower, double upper, Rectangle box) {
+        ImageProcessor traceIp = ip;
+
+        // trace a cropped copy when the box is smaller than the slice
+        if (box != null && (box.width < ip.getWidth() || box.height < ip.getHeight())) {
+            ip.setRoi(box);
+            traceIp = ip.crop();
+            ip.resetRoi();
+        }
+
+        traceIp.setThreshold(lower, upper, ImageProcessor.NO_LUT_UPDATE);
+
+        Roi roi = new ThresholdToSelection().convert(traceIp);
+
+        // shift back from box to image coordinates
+        if (roi != null && traceIp != ip) {
+            Rectangle bounds = roi.getBounds();
+            roi.setLocation(bounds.x + box.x, bounds.y + box.y);
+        }
+
+        return roi;
+    }
+
 }
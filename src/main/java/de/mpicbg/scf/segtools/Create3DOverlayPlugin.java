@@ -2,15 +2,22 @@ package de.mpicbg.scf.segtools;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.Overlay;
 import ij.gui.Roi;
-import inra.ijpb.label.LabelImages;
+import ij.process.ImageProcessor;
+import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import java.awt.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 /*
  * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
@@ -20,7 +27,9 @@ import java.util.Arrays;
 
 /**
  * Small plugin to create overlays of 3D segmentation (binary mask or labelled regions) onto a grayscale image.
- * If grayscale image has multiple frames or channels, then same overlay is added to all frames or channels.
+ * If grayscale image has multiple frames or channels and the segmentation has a single volume, then same overlay is
+ * added to all frames or channels. If the segmentation has several time-points (or channels), every volume gets its
+ * own overlay, traced in parallel (only "all slices" overlay mode).
  */
 @Plugin(type = Command.class, menuPath = "Plugins>SegTools>Create Overlay of Segmentation (3D)")
 public class Create3DOverlayPlugin implements Command {
@@ -37,36 +46,165 @@ public class Create3DOverlayPlugin implements Command {
     @Parameter(label="color mode",choices = {"multicolor","red", "cyan", "magenta"},description = "if multicolor and labelled regions: different objects are displayed in different colors")
     String colorStr="multicolor";
 
+    @Parameter(label="outlines", choices = {"one polygon per object", "one composite roi per slice"}, description = "polygons are faster to create and draw. composite: outlines from ThresholdToSelection")
+    String outlineStr="one polygon per object";
+
+    @Parameter(label="simplification tolerance (pixels)", min = "0", description = "only for polygons. 0: exact pixel outlines, >0: fewer vertices, outlines approximate the pixels")
+    double tolerance=0;
+
+    @Parameter(label="overlay mode", choices = {"all slices", "current slice only", "raster: label boundaries", "raster: filled labels"}, description = "current slice only: overlay holds only the rois of the displayed slice, created when the slice is first shown. Fast for very many objects. raster: labels are painted into a color image per displayed slice, no rois are created")
+    String overlayModeStr="all slices";
+
+    @Parameter(label="raster opacity", min = "0", max = "1", description = "only for the raster modes. 0: invisible, 1: opaque")
+    double opacity=0.6;
+
+    @Parameter
+    StatusService statusService;
+
     @Override
     public void run() {
 
         if (!checkInput()) return;
 
-        // morphlibj is required
-        try {
-            Class.forName("inra.ijpb.label.LabelImages");
-        } catch (ClassNotFoundException e) {
-            IJ.error("MorpholibJ was not found. Please add the IJPB-plugins update site.");
+        // progress in the status bar, Esc cancels
+        try (TaskMonitor monitor = TaskMonitor.start("Create Overlay of Segmentation", statusService)) {
+            createOverlay();
+        } catch (CancellationException e) {
+            IJ.log("Create Overlay of Segmentation (3D) was canceled");
+        }
+    }
+
+
+    /** Creates the overlay in the chosen overlay mode */
+    private void createOverlay() {
+        if (segImp.getNChannels() > 1 || segImp.getNFrames() > 1) {
+            createHyperstackOverlay();
+            return;
+        }
+
+        // painted per displayed slice, without a pass over the whole label image
+        if (overlayModeStr.startsWith("raster")) {
+            installRasterOverlay(overlayModeStr.equals("raster: label boundaries"));
             return;
         }
 
-        int[] labelIds = LabelImages.findAllLabels(segImp);
+        // label index and rois are cached, repeated runs on the same segmentation do not extract them again
+        LabelIndex index = LabelCache.getIndex(segImp);
 
-        Color[] colors = pickColors(colorStr, labelIds.length);
+        ContourTracer tracer = outlineStr.startsWith("one polygon") ? new ContourTracer(tolerance) : null;
+
+        if (overlayModeStr.equals("current slice only")) {
+            installSliceIndexedOverlay(index, tracer);
+            return;
+        }
+
+        // rois of all labels, traced in a single (parallel) pass over the slices
+        Map<Integer, Roi[]> roisPerLabel;
+        try (TaskMonitor.Timer timer = TaskMonitor.Time("tracing")) {
+            roisPerLabel = LabelCache.getRoisOfAllLabels(segImp, tracer, Prefs.getThreads());
+        }
+
+        Color[] colors = pickColors(colorStr, roisPerLabel.size());
 
         Overlay ov = new Overlay();
 
         // draw each region into overlay
-        for (int idx=0; idx<labelIds.length; idx++) {
-            Roi[] rois = Conversions.RoisFromOneLabel(segImp, labelIds[idx]);
+        try (TaskMonitor.Timer timer = TaskMonitor.Time("overlay build")) {
+            int idx=0;
+            for (Roi[] rois : roisPerLabel.values()) {
+                TaskMonitor.CheckCanceled();
+                AddRoiArrayToOverlay(ov, grayImp,rois,colors[idx]);
+                idx++;
+            }
+        }
+
+
+        grayImp.setOverlay(ov);
+    }
 
-            AddRoiArrayToOverlay(ov, grayImp,rois,colors[idx]);
+    /**
+     * Creates the overlay of a segmentation with several time-points or channels: the rois of every volume are shown on
+     * the corresponding channel and frame of grayImp. Colors are assigned per label, so a label keeps its color over
+     * time. The lazy overlay modes follow only the z-slice, they are replaced by "all slices".
+     */
+    private void createHyperstackOverlay() {
+        if (!overlayModeStr.equals("all slices")) {
+            IJ.log("Overlay mode \"" + overlayModeStr + "\" is not available for segmentations with several time-points or channels, using \"all slices\"");
+        }
+        ContourTracer tracer = outlineStr.startsWith("one polygon") ? new ContourTracer(tolerance) : null;
+
+        Map<Integer, Roi[]> roisPerLabel;
+        try (TaskMonitor.Timer timer = TaskMonitor.Time("tracing")) {
+            roisPerLabel = HyperstackConversions.RoisFromAllLabels(segImp, tracer, Prefs.getThreads());
         }
+        Color[] colors = pickColors(colorStr, roisPerLabel.size());
 
+        Overlay ov = new Overlay();
+        try (TaskMonitor.Timer timer = TaskMonitor.Time("overlay build")) {
+            int idx=0;
+            for (Roi[] rois : roisPerLabel.values()) {
+                TaskMonitor.CheckCanceled();
+                for (Roi roi : rois) {
+                    roi.setStrokeColor(colors[idx]);
+                    if (!grayImp.isHyperStack()) {
+                        // plain stack: a single dimension besides x,y, the roi goes to its stack index
+                        roi.setPosition(grayImp.getStackIndex(Math.max(roi.getCPosition(), 1), Math.max(roi.getZPosition(), 1),
+                                Math.max(roi.getTPosition(), 1)));
+                    }
+                    ov.add(roi);
+                }
+                idx++;
+            }
+        }
 
         grayImp.setOverlay(ov);
     }
 
+
+    /**
+     * Creates the overlay in "current slice only" mode: the rois of a slice are traced when the slice is shown first.
+     * Colors are assigned in label order, as for the full overlay.
+     * @param index label index of segImp
+     * @param tracer contour tracer, null: ThresholdToSelection
+     */
+    private void installSliceIndexedOverlay(LabelIndex index, final ContourTracer tracer) {
+        final int[] labels = index.getLabels();
+        final Color[] colors = pickColors(colorStr, labels.length);
+        final List<List<LabelIndex.Region>> regionsPerSlice = index.getRegionsPerSlice();
+        final ImageStack stack = segImp.getStack();
+
+        SliceIndexedOverlay.install(grayImp, slice -> {
+            ImageProcessor ip = stack.getProcessor(slice);
+            List<Roi> rois = new ArrayList<>();
+            for (LabelIndex.Region region : regionsPerSlice.get(slice)) {
+                int labelId = region.getLabel();
+                Color color = colors[Arrays.binarySearch(labels, labelId)];
+                for (Roi roi : Conversions.TraceRois(ip, labelId, labelId+0.1, region.getBounds(), tracer)) {
+                    roi.setStrokeColor(color);
+                    rois.add(roi);
+                }
+            }
+            return rois.toArray(new Roi[rois.size()]);
+        });
+    }
+
+
+    /**
+     * Creates the overlay in the raster modes: each displayed slice of segImp is painted into a transparent color image,
+     * lazily as in "current slice only" mode. Colors are assigned by label value (see LabelRaster.Render); labels
+     * 1..n get the same colors as in the roi overlays.
+     * @param boundariesOnly paint only the label boundaries, otherwise the filled labels
+     */
+    private void installRasterOverlay(final boolean boundariesOnly) {
+        // a full cycle of the palette
+        final Color[] palette = pickColors(colorStr, 7);
+        final ImageStack stack = segImp.getStack();
+
+        SliceIndexedOverlay.install(grayImp, slice -> new Roi[]{
+                LabelRaster.SliceRoi(stack.getProcessor(slice), palette, boundariesOnly, opacity)});
+    }
+
+
     /**
      * sanity checks.
      * @return whether checks were successful
@@ -76,6 +214,10 @@ public class Create3DOverlayPlugin implements Command {
             IJ.error("Image dimensions in x,y,z must be the same for grayscale and segmentation image");
             return false;
         }
+        if ((segImp.getNFrames()>1 && segImp.getNFrames()!=grayImp.getNFrames()) || (segImp.getNChannels()>1 && segImp.getNChannels()!=grayImp.getNChannels())) {
+            IJ.error("Segmentation image must have a single time-point (channel) or as many as the grayscale image");
+            return false;
+        }
         return true;
     }
 
@@ -86,7 +228,7 @@ public class Create3DOverlayPlugin implements Command {
      * @param count number of different regions to color
      * @return colors
      */
-    private Color[] pickColors(String colorStr, int count) {
+    static Color[] pickColors(String colorStr, int count) {
 
         // default order for multicolor mode
         final Color[] defaultColors= new Color[] {Color.red, Color.green, Color.cyan, Color.magenta, Color.orange, Color.blue, Color.yellow};
@@ -0,0 +1,250 @@
+package de.mpicbg.scf.segtools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * static utility functions like Conversions, for hyperstacks with several channels and/or time-points. Every
+ * (channel, frame) volume is converted on its own with the Conversions functions; the volumes are processed in
+ * parallel. Virtual stacks are read in the calling thread only (their readers are not thread-safe): their volumes are
+ * loaded and processed one after the other, so a single volume is in memory at a time.
+ *
+ * Roi positions: rois are read with their (channel, slice, frame) position. Rois created by these functions get the
+ * position (c, z, t) of their volume and slice, where a dimension of size 1 gets position 0 (= all channels, slices or
+ * frames of the image the rois are shown on).
+ */
+public class HyperstackConversions {
+
+    /**
+     * Creates a binary mask hyperstack of all roi's in the roi array.
+     *
+     * @param roiarray Array of rois. A roi with channel (or frame) position 0 is drawn into all channels (or frames).
+     *                 Rois with only a stack position are located with the dimensions of imp.
+     * @param imp sets target dimensions (x, y, z, t, and the channels if perChannel) and calibration of the mask
+     * @param perChannel if true the mask has the channels of imp and each roi is drawn into its channel, otherwise the
+     *                   mask has a single channel and the channel of the rois is ignored
+     * @param associate if true the ROIs are only drawn in the associated slices, otherwise they are drawn in all slices.
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return mask. 8 bit binary mask with foreground (=roi regions) value 255, background=0.
+     */
+    static public ImagePlus BinaryMaskFromRois(Roi[] roiarray, ImagePlus imp, boolean perChannel, final boolean associate,
+                                               int parallelism) {
+        final int nChannels = perChannel ? imp.getNChannels() : 1;
+        final int nSlices = imp.getNSlices();
+        final int nFrames = imp.getNFrames();
+        final int width = imp.getWidth();
+        final int height = imp.getHeight();
+
+        // rois per volume, index (t-1)*nChannels + (c-1)
+        final List<List<Roi>> roisPerVolume = new ArrayList<>();
+        for (int v = 0; v < nChannels * nFrames; v++) {
+            roisPerVolume.add(new ArrayList<Roi>());
+        }
+        for (Roi roi : roiarray) {
+            Roi positioned = HyperstackPosition(roi, imp);
+            int c = perChannel ? positioned.getCPosition() : 0;
+            int t = positioned.getTPosition();
+            for (int frame = 1; frame < nFrames + 1; frame++) {
+                for (int channel = 1; channel < nChannels + 1; channel++) {
+                    if ((c == 0 || c == channel) && (t == 0 || t == frame)) {
+                        roisPerVolume.get((frame - 1) * nChannels + channel - 1).add(positioned);
+                    }
+                }
+            }
+        }
+
+        final ImagePlus[] volumes = new ImagePlus[nChannels * nFrames];
+        final int inner = InnerParallelism(volumes.length, parallelism);
+
+        ParallelSlices.ForEach(volumes.length, parallelism, v -> {
+            List<Roi> rois = roisPerVolume.get(v - 1);
+            volumes[v - 1] = Conversions.BinaryMaskFromRois(rois.toArray(new Roi[rois.size()]), width, height,
+                    nSlices, associate, inner);
+        });
+
+        ImagePlus mask = Assemble("binary mask", volumes, nChannels, nSlices, nFrames);
+        mask.setCalibration(imp.getCalibration());
+        return mask;
+    }
+
+
+    /**
+     * Like Conversions.RoisFromBinaryMask(ImagePlus mask, ContourTracer tracer, int parallelism), for every
+     * (channel, frame) volume of a mask hyperstack.
+     *
+     * @param mask binary mask, foreground=255
+     * @param tracer contour tracer, null: one (composite) roi per slice from ThresholdToSelection
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return rois ordered by frame, channel and slice, with (c, z, t) positions
+     */
+    static public Roi[] RoisFromBinaryMask(final ImagePlus mask, final ContourTracer tracer, int parallelism) {
+        final int nChannels = mask.getNChannels();
+        final Roi[][] perVolume = new Roi[nChannels * mask.getNFrames()][];
+        final boolean virtual = mask.getStack().isVirtual();
+        final int inner = virtual ? parallelism : InnerParallelism(perVolume.length, parallelism);
+
+        ParallelSlices.ForEach(perVolume.length, virtual ? 1 : parallelism, v -> {
+            int c = (v - 1) % nChannels + 1;
+            int t = (v - 1) / nChannels + 1;
+            Roi[] rois = Conversions.RoisFromBinaryMask(Volume(mask, c, t), tracer, inner);
+            SetPositions(rois, mask, c, t);
+            perVolume[v - 1] = rois;
+        });
+
+        List<Roi> roiList = new ArrayList<>();
+        for (Roi[] rois : perVolume) {
+            roiList.addAll(Arrays.asList(rois));
+        }
+        return roiList.toArray(new Roi[roiList.size()]);
+    }
+
+
+    /**
+     * Like Conversions.RoisFromAllLabels(ImagePlus labelImp, LabelIndex index, ContourTracer tracer, int parallelism),
+     * for every (channel, frame) volume of a label hyperstack. A label which occurs in several volumes (e.g. a tracked
+     * object) collects the rois of all of them.
+     *
+     * @param labelImp label image with regions of value 1,2,3,....
+     * @param tracer contour tracer, null: one (composite) roi per label and slice from ThresholdToSelection
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return map from label id to the array of its rois (ordered by frame, channel and slice), with (c, z, t)
+     * positions. Labels are sorted in ascending order.
+     */
+    static public Map<Integer, Roi[]> RoisFromAllLabels(final ImagePlus labelImp, final ContourTracer tracer, int parallelism) {
+        final int nChannels = labelImp.getNChannels();
+        @SuppressWarnings("unchecked")
+        final Map<Integer, Roi[]>[] perVolume = new Map[nChannels * labelImp.getNFrames()];
+        final boolean virtual = labelImp.getStack().isVirtual();
+        final int inner = virtual ? parallelism : InnerParallelism(perVolume.length, parallelism);
+
+        ParallelSlices.ForEach(perVolume.length, virtual ? 1 : parallelism, v -> {
+            int c = (v - 1) % nChannels + 1;
+            int t = (v - 1) / nChannels + 1;
+            ImagePlus volume = Volume(labelImp, c, t);
+            Map<Integer, Roi[]> roisPerLabel = Conversions.RoisFromAllLabels(volume, LabelIndex.build(volume), tracer, inner);
+            for (Roi[] rois : roisPerLabel.values()) {
+                SetPositions(rois, labelImp, c, t);
+            }
+            perVolume[v - 1] = roisPerLabel;
+        });
+
+        // per label, in volume order
+        return Conversions.CollectPerLabel(Arrays.asList(perVolume));
+    }
+
+
+    /**
+     * Like Conversions.RoisFromBinaryMaskStreaming(IntFunction, int, int, int, ContourTracer, Consumer), for an image
+     * or hyperstack (e.g. a virtual stack): the (channel, frame) volumes are streamed one after the other, each with
+     * its z slices.
+     *
+     * @param mask binary mask, foreground=255 (threshold at 1)
+     * @param batchSize number of Rois passed to consumer at once
+     * @param parallelism number of slices traced (and held in memory) at the same time
+     * @param tracer contour tracer, null: one (composite) roi per slice from ThresholdToSelection
+     * @param consumer receives the Rois ordered by frame, channel and slice, in batches. Hyperstack rois have (c, z, t)
+     *                 positions as in RoisFromBinaryMask, otherwise rois are associated with their z slice.
+     * @return number of Rois created
+     */
+    static public int RoisFromBinaryMaskStreaming(final ImagePlus mask, int batchSize, int parallelism,
+                                                  ContourTracer tracer, final Consumer<Roi[]> consumer) {
+        final ImageStack stack = mask.getStack();
+        final boolean hyperstack = mask.getNChannels() > 1 || mask.getNFrames() > 1;
+        int count = 0;
+
+        for (int t = 1; t < mask.getNFrames() + 1; t++) {
+            for (int c = 1; c < mask.getNChannels() + 1; c++) {
+                final int channel = c;
+                final int frame = t;
+                count += Conversions.RoisFromBinaryMaskStreaming(z -> stack.getProcessor(mask.getStackIndex(channel, z, frame)),
+                        mask.getNSlices(), batchSize, parallelism, tracer, rois -> {
+                            if (hyperstack) {
+                                SetPositions(rois, mask, channel, frame);
+                            }
+                            consumer.accept(rois);
+                        });
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Returns one (channel, frame) volume of an image as 3D image. The volume shares the pixels with imp (no copy), so
+     * changes of the volume change imp. Exception: the slices of a virtual stack are read into memory, the volume is
+     * then a copy. Virtual stacks must not be read from several threads at once.
+     *
+     * @param imp image or hyperstack
+     * @param c channel (1-based)
+     * @param t frame (1-based)
+     * @return volume with the z slices of imp, calibrated like imp
+     */
+    static public ImagePlus Volume(ImagePlus imp, int c, int t) {
+        ImageStack stack = imp.getStack();
+        ImageStack volumeStack = new ImageStack(imp.getWidth(), imp.getHeight());
+        for (int z = 1; z < imp.getNSlices() + 1; z++) {
+            int index = imp.getStackIndex(c, z, t);
+            volumeStack.addSlice(stack.getSliceLabel(index), stack.getPixels(index));
+        }
+        ImagePlus volume = new ImagePlus(imp.getTitle() + " (c" + c + ", t" + t + ")", volumeStack);
+        volume.setCalibration(imp.getCalibration());
+        return volume;
+    }
+
+
+    /**
+     * Helper: copy of roi with a (c, z, t) position. Rois which only have a stack position get the position of that
+     * stack index in imp, rois without position get (0, 0, 0).
+     */
+    static Roi HyperstackPosition(Roi roi, ImagePlus imp) {
+        if (roi.hasHyperStackPosition() || roi.getPosition() == 0) {
+            return roi;
+        }
+        int[] position = imp.convertIndexToPosition(roi.getPosition());
+        Roi positioned = (Roi) roi.clone();
+        positioned.setPosition(imp.getNChannels() > 1 ? position[0] : 0, position[1], imp.getNFrames() > 1 ? position[2] : 0);
+        return positioned;
+    }
+
+
+    /** Helper: sets the (c, z, t) position of rois traced from volume (c, t) of imp. z is taken from the roi */
+    private static void SetPositions(Roi[] rois, ImagePlus imp, int c, int t) {
+        for (Roi roi : rois) {
+            roi.setPosition(imp.getNChannels() > 1 ? c : 0, imp.getNSlices() > 1 ? roi.getZPosition() : 0,
+                    imp.getNFrames() > 1 ? t : 0);
+        }
+    }
+
+
+    /** Helper: number of threads per volume, so that all threads are used also for few volumes */
+    private static int InnerParallelism(int nVolumes, int parallelism) {
+        return Math.max(1, parallelism / Math.max(nVolumes, 1));
+    }
+
+
+    /** Helper: hyperstack of volumes (index (t-1)*nChannels + (c-1)). The pixels are not copied */
+    private static ImagePlus Assemble(String title, ImagePlus[] volumes, int nChannels, int nSlices, int nFrames) {
+        ImagePlus first = volumes[0];
+        ImageStack stack = new ImageStack(first.getWidth(), first.getHeight());
+        for (int t = 1; t < nFrames + 1; t++) {
+            for (int z = 1; z < nSlices + 1; z++) {
+                for (int c = 1; c < nChannels + 1; c++) {
+                    stack.addSlice("", volumes[(t - 1) * nChannels + c - 1].getStack().getPixels(z));
+                }
+            }
+        }
+        ImagePlus imp = new ImagePlus(title, stack);
+        imp.setDimensions(nChannels, nSlices, nFrames);
+        if (nChannels > 1 || nFrames > 1) {
+            imp.setOpenAsHyperStack(true);
+        }
+        return imp;
+    }
+}
@@ -0,0 +1,231 @@
+package de.mpicbg.scf.segtools;
+
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.BooleanType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * static utility functions like Conversions, for ImgLib2 images (RandomAccessibleInterval) instead of ImagePlus.
+ * Images are accessed slice by slice through Views.hyperSlice, so cell images and lazily computed images are read
+ * directly, only the slices being processed are copied into 2d processors.
+ *
+ * Images are 2D (x,y) or 3D (x,y,z). Rois are in pixel coordinates relative to the minimum of the interval, z slices
+ * are numbered 1..depth as in ImageJ.
+ */
+public class ImgConversions {
+
+    /**
+     * Like Conversions.RoisFromBinaryMask(ImagePlus mask, ContourTracer tracer, int parallelism), for a boolean mask.
+     *
+     * @param mask 2D or 3D mask, true is foreground
+     * @param tracer contour tracer, null: one (composite) roi per slice from ThresholdToSelection
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return rois in slice order, associated with slices if the mask is 3D
+     */
+    static public <B extends BooleanType<B>> Roi[] RoisFromMask(final RandomAccessibleInterval<B> mask,
+                                                                 final ContourTracer tracer, int parallelism) {
+        final int nSlices = NumberOfSlices(mask);
+        final Roi[][] perSlice = new Roi[nSlices][];
+
+        ParallelSlices.ForEach(nSlices, parallelism, slice -> {
+            ImageProcessor ip = ReadBooleanSlice(mask, slice);
+            perSlice[slice - 1] = Associate(Conversions.TraceRois(ip, 1, 255, null, tracer), slice, nSlices);
+        });
+
+        return Flatten(perSlice);
+    }
+
+
+    /**
+     * Like Conversions.RoisFromBinaryMask(ImagePlus mask, ContourTracer tracer, int parallelism), for an integer mask
+     * (threshold at 1, so label images work as well).
+     *
+     * @param mask 2D or 3D mask, values >= 1 are foreground
+     * @param tracer contour tracer, null: one (composite) roi per slice from ThresholdToSelection
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return rois in slice order, associated with slices if the mask is 3D
+     */
+    static public <T extends IntegerType<T>> Roi[] RoisFromBinaryMask(final RandomAccessibleInterval<T> mask,
+                                                                       final ContourTracer tracer, int parallelism) {
+        final int nSlices = NumberOfSlices(mask);
+        final Roi[][] perSlice = new Roi[nSlices][];
+
+        ParallelSlices.ForEach(nSlices, parallelism, slice -> {
+            ImageProcessor ip = ReadIntegerSlice(mask, slice);
+            perSlice[slice - 1] = Associate(Conversions.TraceRois(ip, 1, Float.MAX_VALUE, null, tracer), slice, nSlices);
+        });
+
+        return Flatten(perSlice);
+    }
+
+
+    /**
+     * Like Conversions.RoisFromAllLabels(ImagePlus labelImp, LabelIndex index, ContourTracer tracer, int parallelism),
+     * for an integer label image. Each slice is read once; the labels of a slice and their bounding boxes are found
+     * in that slice, so no index of the whole image is needed. Labels must be below 2^24 (exact in float).
+     *
+     * @param labelImg 2D or 3D label image with regions of value 1,2,3,...
+     * @param tracer contour tracer, null: one (composite) roi per label and slice from ThresholdToSelection
+     * @param parallelism number of worker threads (e.g. Prefs.getThreads()). 1 runs in the calling thread.
+     * @return map from label id to the array of its rois (in slice order). Labels are sorted in ascending order.
+     */
+    static public <T extends IntegerType<T>> Map<Integer, Roi[]> RoisFromAllLabels(final RandomAccessibleInterval<T> labelImg,
+                                                                                    final ContourTracer tracer, int parallelism) {
+        final int nSlices = NumberOfSlices(labelImg);
+
+        // per slice: label -> rois of that label in the slice
+        @SuppressWarnings("unchecked")
+        final Map<Integer, Roi[]>[] perSlice = new Map[nSlices];
+
+        ParallelSlices.ForEach(nSlices, parallelism, slice -> {
+            ImageProcessor ip = ReadIntegerSlice(labelImg, slice);
+            Map<Integer, Roi[]> sliceRois = new TreeMap<>();
+            // labels of the slice and their bounding boxes, from the runs of equal values
+            Map<Integer, LabelIndex.Region> regions = new TreeMap<>();
+            LabelIndex.scanSlice(ip, slice, 0, 0, regions);
+            for (LabelIndex.Region region : regions.values()) {
+                int labelId = region.getLabel();
+                Roi[] rois = Conversions.TraceRois(ip, labelId, labelId+0.1, region.getBounds(), tracer);
+                sliceRois.put(labelId, Associate(rois, slice, nSlices));
+            }
+            perSlice[slice - 1] = sliceRois;
+        });
+
+        // per label, in slice order
+        return Conversions.CollectPerLabel(Arrays.asList(perSlice));
+    }
+
+
+    /**
+     * Like Conversions.BinaryMaskFromRois, but draws into an existing boolean image, e.g. a cell image which is
+     * larger than the memory. Every slice of target is written (pixels outside all rois are set to false).
+     *
+     * @param roiarray rois to draw
+     * @param target 2D or 3D boolean image, overwritten
+     * @param associate if true, each roi is drawn into its associated slice (unassociated rois: all slices), otherwise
+     *                  into all slices
+     * @param parallelism number of slices processed at the same time. 1 runs in the calling thread.
+     */
+    static public <B extends BooleanType<B>> void BinaryMaskFromRois(Roi[] roiarray, final RandomAccessibleInterval<B> target,
+                                                                     boolean associate, int parallelism) {
+        final int nSlices = NumberOfSlices(target);
+        final int width = (int) target.dimension(0);
+        final int height = (int) target.dimension(1);
+
+        final List<List<Roi>> roisPerSlice = new ArrayList<>(nSlices + 1);
+        for (int slice = 0; slice < nSlices + 1; slice++) {
+            roisPerSlice.add(new ArrayList<Roi>());
+        }
+        for (int idx = 0; idx < roiarray.length; idx++) {
+            int targetSlice = Conversions.TargetSlice(roiarray[idx], idx, nSlices, associate);
+            if (targetSlice >= 0) {
+                roisPerSlice.get(targetSlice).add(roiarray[idx]); // index 0: all slices
+            }
+        }
+
+        // rois of all slices are rasterized once
+        final ByteProcessor allSlices = new ByteProcessor(width, height);
+        allSlices.setValue(255);
+        for (Roi roi : roisPerSlice.get(0)) {
+            allSlices.fill(roi);
+        }
+        final byte[] allPixels = (byte[]) allSlices.getPixels();
+
+        ParallelSlices.ForEach(nSlices, parallelism, slice -> {
+            ByteProcessor ip = new ByteProcessor(width, height);
+            System.arraycopy(allPixels, 0, ip.getPixels(), 0, allPixels.length);
+            ip.setValue(255);
+            for (Roi roi : roisPerSlice.get(slice)) {
+                ip.fill(roi);
+            }
+
+            byte[] pixels = (byte[]) ip.getPixels();
+            Cursor<B> cursor = Views.flatIterable(Slice(target, slice)).cursor();
+            for (int i = 0; i < pixels.length; i++) {
+                cursor.fwd();
+                cursor.get().set(pixels[i] != 0);
+            }
+        });
+    }
+
+
+    /** Helper: number of slices of a 2D or 3D image */
+    static int NumberOfSlices(RandomAccessibleInterval<?> img) {
+        if (img.numDimensions() == 2) {
+            return 1;
+        }
+        if (img.numDimensions() == 3) {
+            return (int) img.dimension(2);
+        }
+        throw new IllegalArgumentException("Image must be 2D or 3D, but has " + img.numDimensions() + " dimensions");
+    }
+
+
+    /** Helper: view of a (1-based) slice */
+    private static <T> RandomAccessibleInterval<T> Slice(RandomAccessibleInterval<T> img, int slice) {
+        if (img.numDimensions() == 2) {
+            return img;
+        }
+        return Views.hyperSlice(img, 2, img.min(2) + slice - 1);
+    }
+
+
+    /** Helper: copies a slice of a boolean image into a byte processor (true: 255) */
+    private static <B extends BooleanType<B>> ImageProcessor ReadBooleanSlice(RandomAccessibleInterval<B> img, int slice) {
+        ByteProcessor ip = new ByteProcessor((int) img.dimension(0), (int) img.dimension(1));
+        byte[] pixels = (byte[]) ip.getPixels();
+        Cursor<B> cursor = Views.flatIterable(Slice(img, slice)).cursor();
+        for (int i = 0; i < pixels.length; i++) {
+            cursor.fwd();
+            if (cursor.get().get()) {
+                pixels[i] = (byte) 255;
+            }
+        }
+        return ip;
+    }
+
+
+    /** Helper: copies a slice of an integer image into a float processor */
+    private static <T extends IntegerType<T>> ImageProcessor ReadIntegerSlice(RandomAccessibleInterval<T> img, int slice) {
+        FloatProcessor ip = new FloatProcessor((int) img.dimension(0), (int) img.dimension(1));
+        float[] pixels = (float[]) ip.getPixels();
+        Cursor<T> cursor = Views.flatIterable(Slice(img, slice)).cursor();
+        for (int i = 0; i < pixels.length; i++) {
+            cursor.fwd();
+            pixels[i] = cursor.get().getInteger();
+        }
+        return ip;
+    }
+
+
+    /** Helper: associates rois with their slice if the image is 3D */
+    private static Roi[] Associate(Roi[] rois, int slice, int nSlices) {
+        if (nSlices > 1) {
+            for (Roi roi : rois) {
+                roi.setPosition(1, slice, 1);
+            }
+        }
+        return rois;
+    }
+
+
+    private static Roi[] Flatten(Roi[][] perSlice) {
+        List<Roi> roiList = new ArrayList<>();
+        for (Roi[] rois : perSlice) {
+            roiList.addAll(Arrays.asList(rois));
+        }
+        return roiList.toArray(new Roi[roiList.size()]);
+    }
+}
@@ -0,0 +1,253 @@
+package de.mpicbg.scf.segtools;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the label extraction results (LabelIndex and rois per label) of recently used label images, so repeated
+ * runs of the overlay plugin on the same segmentation (e.g. with another color or grayscale image) do not trace again.
+ *
+ * Entries are identified by image id, dimensions and stack object; the pixels are not read to look up an entry. The
+ * entry of an image is removed when the image is closed or reports an update which changed the pixels of the shown
+ * slice (e.g. after painting into it): updates of an image with unsaved changes compare a hash of the shown slice with
+ * the hash of the last update of that slice (the first update of a slice only records its hash), so scrolling through
+ * an edited image keeps its entry. An entry whose image was edited while it was built is not cached. Changes made
+ * without an update notification (e.g. from a script writing into the pixel arrays) are not detected: call invalidate
+ * after editing a label image that way.
+ * The cache holds at most MAX_ENTRIES images and at most a fraction of the maximum heap (estimated from the vertex
+ * counts of the rois); least recently used entries are evicted first. Entries of closed images are removed.
+ */
+public class LabelCache {
+
+    /** maximum number of cached images */
+    static final int MAX_ENTRIES = 8;
+
+    /** maximum estimated size of all cached rois, as fraction of the maximum heap size */
+    static final double MAX_HEAP_FRACTION = 0.1;
+
+    /** Cached results of one label image */
+    private static class Entry {
+        final long dimensions;
+        final Object stack;
+        final LabelIndex index;
+        final Map<String, Map<Integer, Roi[]>> roisPerTracer = new HashMap<>();
+        // hash of the pixels per slice at the last update of the image
+        final Map<Integer, Integer> sliceStamps = new HashMap<>();
+        long bytes;
+
+        Entry(long dimensions, Object stack, LabelIndex index) {
+            this.dimensions = dimensions;
+            this.stack = stack;
+            this.index = index;
+        }
+    }
+
+    // key: image id. access order: least recently used first
+    private static final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // key: image id. number of invalidations, an entry built while it changed is not cached
+    private static final Map<Integer, Long> modifications = new HashMap<>();
+    private static long totalBytes = 0;
+    private static boolean listening = false;
+
+
+    /**
+     * Returns the label index of labelImp, from the cache or built with LabelIndex.build.
+     *
+     * @param labelImp label image
+     * @return label index. Shared with the cache: do not modify.
+     */
+    public static LabelIndex getIndex(ImagePlus labelImp) {
+        return getEntry(labelImp).index;
+    }
+
+
+    /**
+     * Returns the rois of all labels, from the cache or extracted with Conversions.RoisFromAllLabels.
+     *
+     * @param labelImp label image
+     * @param tracer contour tracer (null: ThresholdToSelection). Results of different tracer settings are cached separately.
+     * @param parallelism number of worker threads for the extraction
+     * @return map from label id to the array of its rois (in slice order), sorted by label. The rois are copies, so
+     * they can be changed (colors, positions) without affecting the cache.
+     */
+    public static Map<Integer, Roi[]> getRoisOfAllLabels(ImagePlus labelImp, ContourTracer tracer, int parallelism) {
+        Entry entry = getEntry(labelImp);
+        String tracerKey = (tracer == null) ? "ThresholdToSelection" : "ContourTracer:" + tracer.getTolerance();
+
+        Map<Integer, Roi[]> cached;
+        synchronized (LabelCache.class) {
+            cached = entry.roisPerTracer.get(tracerKey);
+        }
+
+        if (cached == null) {
+            cached = Conversions.RoisFromAllLabels(labelImp, entry.index, tracer, parallelism);
+            synchronized (LabelCache.class) {
+                if (entries.get(labelImp.getID()) == entry) {
+                    entry.roisPerTracer.put(tracerKey, cached);
+                    long bytes = EstimateBytes(cached);
+                    entry.bytes += bytes;
+                    totalBytes += bytes;
+                    Evict();
+                }
+            }
+        }
+
+        return Copy(cached);
+    }
+
+
+    /** Removes the cached results of an image, e.g. after its pixels were edited. */
+    public static synchronized void invalidate(ImagePlus labelImp) {
+        Remove(labelImp.getID());
+        modifications.merge(labelImp.getID(), 1L, Long::sum);
+    }
+
+
+    /** Removes all cached results. */
+    public static synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+
+    /** Helper for getIndex and getRoisOfAllLabels. Returns the valid entry of labelImp, creates it if necessary */
+    private static Entry getEntry(ImagePlus labelImp) {
+        long dimensions = Dimensions(labelImp);
+        Object stack = labelImp.getStack();
+        long modificationsBefore;
+
+        synchronized (LabelCache.class) {
+            // before building, so edits during the build are noticed
+            StartListening();
+            Entry entry = entries.get(labelImp.getID());
+            if (entry != null && entry.dimensions == dimensions && entry.stack == stack) {
+                return entry;
+            }
+            Remove(labelImp.getID());
+            modificationsBefore = modifications.getOrDefault(labelImp.getID(), 0L);
+        }
+
+        // built outside of the lock, a concurrent request for the same image may build it as well
+        Entry entry = new Entry(dimensions, stack, LabelIndex.build(labelImp));
+        synchronized (LabelCache.class) {
+            // edited during the build: the index may be stale, use it for this request only
+            if (modifications.getOrDefault(labelImp.getID(), 0L) == modificationsBefore) {
+                entry.sliceStamps.put(labelImp.getCurrentSlice(), SliceHash(labelImp));
+                entries.put(labelImp.getID(), entry);
+                Evict();
+            }
+        }
+        return entry;
+    }
+
+
+    private static void Remove(int imageId) {
+        Entry entry = entries.remove(imageId);
+        if (entry != null) {
+            totalBytes -= entry.bytes;
+        }
+    }
+
+
+    /** Helper: removes least recently used entries until the limits hold. Caller holds the lock. */
+    private static void Evict() {
+        long maxBytes = (long) (MAX_HEAP_FRACTION * Runtime.getRuntime().maxMemory());
+        Iterator<Map.Entry<Integer, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext() && (entries.size() > MAX_ENTRIES || totalBytes > maxBytes)) {
+            totalBytes -= it.next().getValue().bytes;
+            it.remove();
+        }
+    }
+
+
+    /** Helper: removes the entry of an image when it is edited or closed. Caller holds the lock. */
+    private static void StartListening() {
+        if (listening) {
+            return;
+        }
+        ImagePlus.addImageListener(new ImageListener() {
+            @Override
+            public void imageOpened(ImagePlus imp) {
+            }
+
+            @Override
+            public void imageClosed(ImagePlus imp) {
+                invalidate(imp);
+            }
+
+            @Override
+            public void imageUpdated(ImagePlus imp) {
+                // pixels were edited (paint, fill, filters, ...)? updates without changes (scrolling) only record
+                // the hash of the shown slice
+                synchronized (LabelCache.class) {
+                    Entry entry = entries.get(imp.getID());
+                    if (entry == null) {
+                        return;
+                    }
+                    Integer before = entry.sliceStamps.put(imp.getCurrentSlice(), SliceHash(imp));
+                    if (imp.changes && before != null && !before.equals(entry.sliceStamps.get(imp.getCurrentSlice()))) {
+                        invalidate(imp);
+                    }
+                }
+            }
+        });
+        listening = true;
+    }
+
+
+    /** Helper: hash of width, height, stack size and bit depth */
+    private static long Dimensions(ImagePlus imp) {
+        long hash = 31L * imp.getWidth() + imp.getHeight();
+        hash = 31 * hash + imp.getStackSize();
+        return 31 * hash + imp.getBitDepth();
+    }
+
+
+    /** Helper: hash of the pixels of the shown slice */
+    private static int SliceHash(ImagePlus imp) {
+        Object pixels = imp.getProcessor().getPixels();
+        if (pixels instanceof byte[]) {
+            return Arrays.hashCode((byte[]) pixels);
+        }
+        if (pixels instanceof short[]) {
+            return Arrays.hashCode((short[]) pixels);
+        }
+        if (pixels instanceof float[]) {
+            return Arrays.hashCode((float[]) pixels);
+        }
+        return Arrays.hashCode((int[]) pixels);
+    }
+
+
+    /** Helper: rough memory use of rois, from their vertex counts */
+    private static long EstimateBytes(Map<Integer, Roi[]> roisPerLabel) {
+        long bytes = 0;
+        for (Roi[] rois : roisPerLabel.values()) {
+            for (Roi roi : rois) {
+                bytes += 200 + 16L * roi.size();
+            }
+        }
+        return bytes;
+    }
+
+
+    /** Helper: copies the map and all rois */
+    private static Map<Integer, Roi[]> Copy(Map<Integer, Roi[]> roisPerLabel) {
+        Map<Integer, Roi[]> copy = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Roi[]> entry : roisPerLabel.entrySet()) {
+            Roi[] rois = new Roi[entry.getValue().length];
+            for (int i = 0; i < rois.length; i++) {
+                rois[i] = (Roi) entry.getValue()[i].clone();
+            }
+            copy.put(entry.getKey(), rois);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,242 @@
+package de.mpicbg.scf.segtools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of the regions of a label image: stores per label the z-range, the xy bounding box and the voxel count.
+ * The index is built in a single scan over the label image and can be reused for several conversions, e.g. to trace
+ * a label only inside its bounding box and only on the slices where it occurs.
+ */
+public class LabelIndex {
+
+    /**
+     * Extent of a single label. Slices are counted from 1 (like ImageStack slices), x and y in pixels.
+     */
+    public static class Region {
+        private final int label;
+        private int zMin = Integer.MAX_VALUE;
+        private int zMax = Integer.MIN_VALUE;
+        private int xMin = Integer.MAX_VALUE;
+        private int xMax = Integer.MIN_VALUE;
+        private int yMin = Integer.MAX_VALUE;
+        private int yMax = Integer.MIN_VALUE;
+        private long voxelCount = 0;
+
+        Region(int label) {
+            this.label = label;
+        }
+
+        /** Adds a run of pixels [xStart, xEnd] in row y of the given slice. */
+        void addRun(int slice, int y, int xStart, int xEnd) {
+            if (slice < zMin) zMin = slice;
+            if (slice > zMax) zMax = slice;
+            if (y < yMin) yMin = y;
+            if (y > yMax) yMax = y;
+            if (xStart < xMin) xMin = xStart;
+            if (xEnd > xMax) xMax = xEnd;
+            voxelCount += xEnd - xStart + 1;
+        }
+
+        /** Adds the extent and voxels of another part of the same label. */
+        void add(Region other) {
+            if (other.zMin < zMin) zMin = other.zMin;
+            if (other.zMax > zMax) zMax = other.zMax;
+            if (other.yMin < yMin) yMin = other.yMin;
+            if (other.yMax > yMax) yMax = other.yMax;
+            if (other.xMin < xMin) xMin = other.xMin;
+            if (other.xMax > xMax) xMax = other.xMax;
+            voxelCount += other.voxelCount;
+        }
+
+        public int getLabel() {
+            return label;
+        }
+
+        /** @return first slice (1-based) containing the label */
+        public int getZMin() {
+            return zMin;
+        }
+
+        /** @return last slice (1-based) containing the label */
+        public int getZMax() {
+            return zMax;
+        }
+
+        /** @return xy bounding box of the label over all its slices */
+        public Rectangle getBounds() {
+            return new Rectangle(xMin, yMin, xMax - xMin + 1, yMax - yMin + 1);
+        }
+
+        public long getVoxelCount() {
+            return voxelCount;
+        }
+
+        /** @return whether slice lies within the z-range of the label */
+        public boolean containsSlice(int slice) {
+            return slice >= zMin && slice <= zMax;
+        }
+    }
+
+
+    private final int width;
+    private final int height;
+    private final int nSlices;
+    private final Map<Integer, Region> regions; // sorted by label
+
+    private LabelIndex(int width, int height, int nSlices, Map<Integer, Region> regions) {
+        this.width = width;
+        this.height = height;
+        this.nSlices = nSlices;
+        this.regions = regions;
+    }
+
+
+    /**
+     * Builds the index of a label image in a single scan over all slices. The image itself is not modified.
+     * Works in 2D & 3D
+     *
+     * @param labelImp label image (connected components) with regions of value 1,2,3,.... (8, 16 or 32 bit)
+     * @return index of all non-zero labels
+     */
+    public static LabelIndex build(ImagePlus labelImp) {
+        int width = labelImp.getWidth();
+        int height = labelImp.getHeight();
+        int nSlices = labelImp.getNSlices();
+
+        Map<Integer, Region> regions = new TreeMap<>();
+        ImageStack stack = labelImp.getStack();
+
+        try (TaskMonitor.Timer timer = TaskMonitor.Time("label discovery")) {
+            for (int slice = 1; slice < nSlices + 1; slice++) {
+                TaskMonitor.CheckCanceled();
+                scanSlice(stack.getProcessor(slice), slice, 0, 0, regions);
+            }
+        }
+        TaskMonitor.Count("voxels scanned", (long) width * height * nSlices);
+        TaskMonitor.Count("labels", regions.size());
+
+        return new LabelIndex(width, height, nSlices, regions);
+    }
+
+
+    /**
+     * Adds the runs of all non-zero labels of one slice (or a tile of a slice) to regions.
+     *
+     * @param ip slice or tile of a label image
+     * @param slice (1-based) slice index of ip
+     * @param xOffset x position of ip in the image (0 for whole slices)
+     * @param yOffset y position of ip in the image (0 for whole slices)
+     * @param regions regions by label, missing regions are created
+     */
+    static void scanSlice(ImageProcessor ip, int slice, int xOffset, int yOffset, Map<Integer, Region> regions) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            int x = 0;
+            while (x < width) {
+                int value = (int) ip.getf(offset + x);
+                // find the end of the run of equal values
+                int xEnd = x;
+                while (xEnd + 1 < width && (int) ip.getf(offset + xEnd + 1) == value) {
+                    xEnd++;
+                }
+                if (value != 0) {
+                    Region region = regions.get(value);
+                    if (region == null) {
+                        region = new Region(value);
+                        regions.put(value, region);
+                    }
+                    region.addRun(slice, y + yOffset, x + xOffset, xEnd + xOffset);
+                }
+                x = xEnd + 1;
+            }
+        }
+    }
+
+
+    /**
+     * Combines the regions of parts of a label image (e.g. blocks or tiles, see BlockwiseLabels) into the index of the
+     * whole image. The result is the same as the index built from the whole image.
+     *
+     * @param parts regions by label of each part, in image coordinates
+     */
+    static LabelIndex merge(int width, int height, int nSlices, List<Map<Integer, Region>> parts) {
+        Map<Integer, Region> regions = new TreeMap<>();
+        for (Map<Integer, Region> part : parts) {
+            for (Region partRegion : part.values()) {
+                Region region = regions.get(partRegion.label);
+                if (region == null) {
+                    region = new Region(partRegion.label);
+                    regions.put(partRegion.label, region);
+                }
+                region.add(partRegion);
+            }
+        }
+        return new LabelIndex(width, height, nSlices, regions);
+    }
+
+
+    /** @return all labels in ascending order */
+    public int[] getLabels() {
+        int[] labels = new int[regions.size()];
+        int idx = 0;
+        for (int label : regions.keySet()) {
+            labels[idx++] = label;
+        }
+        return labels;
+    }
+
+    /** @return the region of a label, or null if the label does not occur in the image */
+    public Region getRegion(int label) {
+        return regions.get(label);
+    }
+
+    /** @return all regions, sorted by label */
+    public Collection<Region> getRegions() {
+        return regions.values();
+    }
+
+    /**
+     * @return for each slice (index 1..nSlices, index 0 unused) the regions whose z-range contains this slice,
+     * sorted by label
+     */
+    public List<List<Region>> getRegionsPerSlice() {
+        List<List<Region>> perSlice = new ArrayList<>(nSlices + 1);
+        for (int slice = 0; slice < nSlices + 1; slice++) {
+            perSlice.add(new ArrayList<Region>());
+        }
+        for (Region region : regions.values()) {
+            for (int slice = region.zMin; slice <= region.zMax; slice++) {
+                perSlice.get(slice).add(region);
+            }
+        }
+        return perSlice;
+    }
+
+    public int getNumberOfLabels() {
+        return regions.size();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getNSlices() {
+        return nSlices;
+    }
+}
@@ -0,0 +1,80 @@
+package de.mpicbg.scf.segtools;
+
+import ij.gui.ImageRoi;
+import ij.gui.Roi;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Color;
+
+/**
+ * Raster alternative to roi overlays of label images: a slice of the label image is painted into a color image, either
+ * the filled labels or only their boundaries, and shown as a (transparent) image roi. No outlines are traced, so the
+ * cost per slice only depends on the number of pixels, not on the number of objects. Colors are taken from a palette
+ * by label value, so no pass over the whole label image is needed before the first slice is painted.
+ */
+class LabelRaster {
+
+    /**
+     * Paints one slice of a label image.
+     *
+     * @param labelIp slice of the label image (8, 16 or 32 bit), background 0
+     * @param palette colors, label l gets palette[(l-1) % palette.length] (labels 1..n get the colors of the roi overlays)
+     * @param boundariesOnly true: only the label pixels with a 4-neighbour of another label (or background or the image
+     *                       border), false: all label pixels
+     * @return color image, black (0) where nothing is painted
+     */
+    static ColorProcessor Render(ImageProcessor labelIp, Color[] palette, boolean boundariesOnly) {
+        int width = labelIp.getWidth();
+        int height = labelIp.getHeight();
+        int[] rgb = new int[width * height];
+
+        int lastLabel = 0;
+        int lastColor = 0;
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                int label = (int) labelIp.getf(i);
+                if (label == 0) {
+                    continue;
+                }
+                if (boundariesOnly && !IsBoundary(labelIp, x, y, label, width, height)) {
+                    continue;
+                }
+
+                // neighbouring pixels mostly have the same label: look up its color only on label changes
+                if (label != lastLabel) {
+                    lastColor = palette[Math.floorMod(label - 1, palette.length)].getRGB() & 0xffffff;
+                    lastLabel = label;
+                }
+                // pure black would be transparent
+                rgb[i] = (lastColor == 0) ? 0x010101 : lastColor;
+            }
+        }
+
+        return new ColorProcessor(width, height, rgb);
+    }
+
+
+    /**
+     * Creates the overlay roi of one slice.
+     *
+     * @param opacity 0 (invisible) .. 1 (opaque)
+     * @see #Render
+     */
+    static Roi SliceRoi(ImageProcessor labelIp, Color[] palette, boolean boundariesOnly, double opacity) {
+        ImageRoi roi = new ImageRoi(0, 0, Render(labelIp, palette, boundariesOnly));
+        roi.setZeroTransparent(true);
+        roi.setOpacity(opacity);
+        return roi;
+    }
+
+
+    /** Helper for Render. Whether a 4-neighbour of pixel (x,y) has another value than label */
+    private static boolean IsBoundary(ImageProcessor ip, int x, int y, int label, int width, int height) {
+        return x == 0 || y == 0 || x == width - 1 || y == height - 1
+                || (int) ip.getf(x - 1, y) != label || (int) ip.getf(x + 1, y) != label
+                || (int) ip.getf(x, y - 1) != label || (int) ip.getf(x, y + 1) != label;
+    }
+}
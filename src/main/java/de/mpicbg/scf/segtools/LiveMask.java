@@ -0,0 +1,266 @@
+package de.mpicbg.scf.segtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.gui.RoiListener;
+import ij.plugin.frame.RoiManager;
+import ij.process.ByteProcessor;
+import ij.process.FloatPolygon;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Binary mask which follows the rois of the ROI manager while they are added, edited or deleted. Rois edited on an
+ * image report RoiListener events; the ROI manager has no events for adding and deleting rois, so its list is
+ * checked every POLL_INTERVAL_MS as well. Both run in a background thread, never on the event dispatch thread.
+ * Every roi gets a signature (slice, type, bounds and outline), which is only computed for rois which are new in the
+ * ROI manager or were reported as modified; only the slices whose signatures changed are cleared and filled again.
+ * Rois are drawn like BinaryMaskFromRois with associate=true: unassociated rois in 3D go into all slices.
+ * The mask is allocated when the preview is started for the first time.
+ */
+class LiveMask implements RoiListener {
+
+    /**
+     * poll interval of the ROI manager list (added and deleted rois). A poll without changes only compares the roi
+     * list with the cached signatures, so a short interval costs little.
+     */
+    static final int POLL_INTERVAL_MS = 40;
+
+    private final RoiManager rm;
+    private final ImagePlus imp;
+    private volatile ImagePlus mask = null;
+    private final int nslices;
+    private final int parallelism;
+    private final ScheduledExecutorService executor;
+    private volatile ScheduledFuture<?> poll = null;
+
+    // an update is queued (events are coalesced)
+    private final AtomicBoolean updateQueued = new AtomicBoolean(false);
+
+    // signature of all rois per slice. index 0: rois drawn into all slices, 1..nslices: single slices
+    private long[] signatures;
+
+    // signature per roi of the ROI manager (by identity), rois reported as modified since the last update
+    private Map<Roi, Long> roiSignatures = new IdentityHashMap<>();
+    private final Set<Roi> modifiedRois = Collections.newSetFromMap(new IdentityHashMap<Roi, Boolean>());
+
+
+    /**
+     * @param rm ROI manager to follow
+     * @param imp image whose dimensions and calibration the mask gets
+     * @param parallelism number of dirty slices repainted at the same time
+     */
+    LiveMask(RoiManager rm, ImagePlus imp, int parallelism) {
+        this.rm = rm;
+        this.imp = imp;
+        this.nslices = imp.getNSlices();
+        this.parallelism = parallelism;
+        this.signatures = new long[nslices + 1]; // an empty slice has signature 0, same as the black mask
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "live mask");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    /** Shows the mask and starts following the ROI manager (the current rois are drawn in the background). */
+    void start() {
+        createMask();
+        mask.show();
+        Roi.addRoiListener(this);
+        poll = executor.scheduleWithFixedDelay(this::queuedUpdate, 0, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+
+    /** Stops following the ROI manager and hides the mask. start() continues with the slices changed meanwhile. */
+    void pause() {
+        stop();
+        if (mask != null) {
+            mask.hide();
+        }
+    }
+
+
+    /** Stops following the ROI manager and closes the mask window. */
+    void dispose() {
+        stop();
+        executor.shutdown();
+        if (mask != null) {
+            mask.changes = false;
+            mask.close();
+        }
+    }
+
+
+    /**
+     * Stops following the ROI manager and brings the mask up to date a last time.
+     * @return the mask, identical to BinaryMaskFromRois(rm, imp, true)
+     */
+    ImagePlus finish() {
+        stop();
+        executor.shutdown();
+        createMask();
+        update();
+        return mask;
+    }
+
+
+    boolean isRunning() {
+        return poll != null;
+    }
+
+
+    /** A roi was edited on an image: its signature is recomputed by the next update, which is queued right away. */
+    @Override
+    public void roiModified(ImagePlus imp, int id) {
+        Roi roi = (imp == null) ? null : imp.getRoi();
+        if (roi != null) {
+            synchronized (modifiedRois) {
+                modifiedRois.add(roi);
+            }
+        }
+        if (!executor.isShutdown() && updateQueued.compareAndSet(false, true)) {
+            executor.execute(this::queuedUpdate);
+        }
+    }
+
+
+    private void stop() {
+        Roi.removeRoiListener(this);
+        if (poll != null) {
+            poll.cancel(false);
+            poll = null;
+        }
+    }
+
+
+    /** Helper: allocates the black mask on first use */
+    private synchronized void createMask() {
+        if (mask == null) {
+            mask = IJ.createImage("binary mask", "8-bit black", imp.getWidth(), imp.getHeight(), nslices);
+            mask.setCalibration(imp.getCalibration());
+        }
+    }
+
+
+    /** Helper: update in the background thread (poll or event) */
+    private void queuedUpdate() {
+        updateQueued.set(false);
+        update();
+    }
+
+
+    /**
+     * Compares the rois of the ROI manager with the mask and repaints the changed slices.
+     * @return number of repainted slices
+     */
+    synchronized int update() {
+        Roi[] rois = rm.getRoisAsArray();
+
+        // group the rois per slice, same rule as Conversions.TargetSlice (without the warning, this runs repeatedly)
+        final List<List<Roi>> roisPerSlice = new ArrayList<>(nslices + 1);
+        for (int slice = 0; slice < nslices + 1; slice++) {
+            roisPerSlice.add(new ArrayList<Roi>());
+        }
+        long[] newSignatures = new long[nslices + 1];
+
+        // signatures of new and modified rois
+        Set<Roi> modified;
+        synchronized (modifiedRois) {
+            modified = Collections.newSetFromMap(new IdentityHashMap<Roi, Boolean>());
+            modified.addAll(modifiedRois);
+            modifiedRois.clear();
+        }
+        Map<Roi, Long> newRoiSignatures = new IdentityHashMap<>();
+
+        for (Roi roi : rois) {
+            Long signature = modified.contains(roi) ? null : roiSignatures.get(roi);
+            if (signature == null) {
+                signature = Signature(roi);
+            }
+            newRoiSignatures.put(roi, signature);
+
+            int slice = roi.getZPosition();
+            if (nslices == 1) {
+                slice = 1;
+            }
+            else if (slice > nslices) {
+                continue;
+            }
+            roisPerSlice.get(slice).add(roi);
+            newSignatures[slice] = 31 * newSignatures[slice] + signature + 1;
+        }
+        roiSignatures = newRoiSignatures;
+
+        // rois in all slices changed: every slice is dirty
+        boolean allDirty = newSignatures[0] != signatures[0];
+        final List<Integer> dirtySlices = new ArrayList<>();
+        for (int slice = 1; slice < nslices + 1; slice++) {
+            if (allDirty || newSignatures[slice] != signatures[slice]) {
+                dirtySlices.add(slice);
+            }
+        }
+        signatures = newSignatures;
+
+        if (dirtySlices.isEmpty()) {
+            return 0;
+        }
+
+        final ImageProcessor allSlices = new ByteProcessor(mask.getWidth(), mask.getHeight());
+        allSlices.setValue(255);
+        for (Roi roi : roisPerSlice.get(0)) {
+            allSlices.fill(roi);
+        }
+        final byte[] allPixels = (byte[]) allSlices.getPixels();
+        final ImageStack stack = mask.getStack();
+
+        ParallelSlices.ForEach(dirtySlices.size(), parallelism, i -> {
+            int slice = dirtySlices.get(i - 1);
+            ImageProcessor maskip = stack.getProcessor(slice);
+            // start from the rois in all slices, then add the rois of this slice
+            System.arraycopy(allPixels, 0, maskip.getPixels(), 0, allPixels.length);
+            maskip.setValue(255);
+            for (Roi roi : roisPerSlice.get(slice)) {
+                maskip.fill(roi);
+            }
+        });
+
+        mask.updateAndDraw();
+        return dirtySlices.size();
+    }
+
+
+    /** Helper for update. Hash of the parts of a roi which change its filled area. */
+    private static long Signature(Roi roi) {
+        long hash = roi.getType();
+        Rectangle bounds = roi.getBounds();
+        hash = 31 * hash + bounds.x;
+        hash = 31 * hash + bounds.y;
+        hash = 31 * hash + bounds.width;
+        hash = 31 * hash + bounds.height;
+
+        FloatPolygon polygon = roi.getFloatPolygon();
+        if (polygon != null) {
+            for (int i = 0; i < polygon.npoints; i++) {
+                hash = 31 * hash + Float.floatToIntBits(polygon.xpoints[i]);
+                hash = 31 * hash + Float.floatToIntBits(polygon.ypoints[i]);
+            }
+        }
+        return hash;
+    }
+}
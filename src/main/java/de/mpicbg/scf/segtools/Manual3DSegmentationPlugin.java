@@ -3,6 +3,7 @@ package de.mpicbg.scf.segtools;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Macro;
 import ij.Prefs;
 import ij.gui.NonBlockingGenericDialog;
 import ij.gui.Overlay;
@@ -11,11 +12,16 @@ import ij.measure.ResultsTable;
 import ij.plugin.frame.RoiManager;
 import inra.ijpb.plugins.AnalyzeRegions;
 import inra.ijpb.plugins.AnalyzeRegions3D;
+import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 
 /*
@@ -30,7 +36,9 @@ import java.awt.Color;
 
 /**
  * Plugin to do semi-manual segmentation in 3D (and 2D) of the active image by drawing and interpolating ROIs.
- * Plugin creates a mask and optionally computes statistics (the latter requires MorpholibJ).
+ * Plugin creates a mask and optionally computes statistics (shape statistics require MorpholibJ).
+ * For images with several channels or time-points, the mask has a single channel and one volume per time-point: the
+ * rois of each time-point are drawn (and interpolated) into its own volume.
  */
 @Plugin(type = Command.class, menuPath = "Plugins>SegTools>Semi-manual Segmentation (3D)")
 public class Manual3DSegmentationPlugin implements Command {
@@ -40,10 +48,13 @@ public class Manual3DSegmentationPlugin implements Command {
     @Parameter(label = "input image")
     ImagePlus imp;
 
+    @Parameter
+    StatusService statusService;
+
     @Override
     public void run() {
 
-        if (!checkInput()) return;
+        final boolean hyperstack = imp.getNChannels() > 1 || imp.getNFrames() > 1;
 
         // set up roi manager
         RoiManager rm = RoiManager.getRoiManager();
@@ -66,48 +77,128 @@ public class Manual3DSegmentationPlugin implements Command {
         gd.addMessage("Instructions:\n"+
                 "* Draw a Roi of the object outline and add it to the Roi Manager.\n"+
                 "* Do this for several slices, including the first & last slice containing the object.\n"+
-                "* Interpolate Roi's for the other slices: In Roi manager, right click into the Roi list, choose 'Interpolate ROIs'\n" +
-                "* Verify that the outline of the shape is good in all slices, otherwise correct it.\n"+
+                "* Either interpolate Roi's for the other slices: In Roi manager, right click into the Roi list, choose 'Interpolate ROIs'\n" +
+                "   and verify that the outline of the shape is good in all slices, otherwise correct it.\n"+
+                "* Or tick 'Interpolate ROIs (built-in)' to interpolate the slices between the drawn Roi's when pressing OK.\n"+
                 "* When finished, press OK.");
+        gd.addCheckbox("Interpolate ROIs (built-in)", false);
+        gd.addCheckbox("Live mask preview", false);
         gd.addCheckbox("Add overlay", true);
-        gd.addCheckbox("Compute statistics (MorpholibJ)", true);
+        gd.addCheckbox("Compute statistics", true);
+        gd.addCheckbox("Shape statistics (MorpholibJ)", true);
         gd.addHelp(helpURL);
+
+        // live preview: mask follows the roi manager while the dialog is open
+        final LiveMask liveMask = new LiveMask(rm, imp, Prefs.getThreads());
+        gd.addDialogListener((dialog, e) -> {
+            dialog.getNextBoolean();
+            boolean livePreview = dialog.getNextBoolean();
+            if (livePreview && hyperstack) {
+                IJ.showStatus("Live mask preview is only available for single channel, single time-point images");
+            } else if (livePreview && !liveMask.isRunning()) {
+                liveMask.start();
+            } else if (!livePreview && liveMask.isRunning()) {
+                liveMask.pause();
+            }
+            return true;
+        });
+
         gd.showDialog();
 
         if (gd.wasCanceled()) {
+            liveMask.dispose();
             return;
         }
 
+        boolean interpolate=gd.getNextBoolean();
+        boolean livePreview=gd.getNextBoolean();
         boolean addOverlay=gd.getNextBoolean();
         boolean computeStatistics=gd.getNextBoolean();
+        boolean computeShapeStatistics=gd.getNextBoolean();
+
+        // macros from before the shape statistics checkbox: "compute" also meant the MorpholibJ statistics
+        String macroOptions = Macro.getOptions();
+        if (macroOptions != null && !(" " + macroOptions).contains(" shape ")) {
+            computeShapeStatistics = computeStatistics;
+        }
 
         // process the ROIs from the roi manager
 
-        // create binary mask
-        ImagePlus mask = Conversions.BinaryMaskFromRois(rm, imp, true);
-        mask.show();
+        // progress in the status bar, Esc cancels
+        try (TaskMonitor monitor = TaskMonitor.start("Semi-manual Segmentation", statusService)) {
+            // create binary mask
+            ImagePlus mask;
+            if (hyperstack) {
+                liveMask.dispose();
+                try (TaskMonitor.Timer timer = TaskMonitor.Time("rasterization")) {
+                    mask = createHyperstackMask(rm, interpolate);
+                }
+            } else if (interpolate) {
+                liveMask.dispose();
+                // interpolated rois and mask in one pass. the roi manager gets the interpolated rois
+                RoiInterpolator.Result result;
+                try (TaskMonitor.Timer timer = TaskMonitor.Time("interpolation")) {
+                    result = RoiInterpolator.interpolate(rm.getRoisAsArray(), imp.getWidth(), imp.getHeight(),
+                            imp.getNSlices(), Prefs.getThreads());
+                }
+                mask = result.mask;
+                mask.setCalibration(imp.getCalibration());
+
+                rm.reset();
+                RoiManagerBulkInsert.AddAll(rm, result.rois);
+            } else if (livePreview) {
+                // the live mask is up to date except for the latest changes
+                mask = liveMask.finish();
+            } else {
+                liveMask.dispose();
+                try (TaskMonitor.Timer timer = TaskMonitor.Time("rasterization")) {
+                    mask = Conversions.BinaryMaskFromRois(rm, imp, true);
+                }
+            }
+            mask.show();
 
-        // overlay on original image
-        if (addOverlay) {
-            createOverlay(rm);
-        }
+            // overlay on original image
+            if (addOverlay) {
+                createOverlay(rm);
+            }
 
 
-        // statistics (single object, no conncomp labeling done)
-        if (computeStatistics) {
-            try {
-                ResultsTable rt;
-                if (mask.getNSlices() > 1) {
-                    rt = new AnalyzeRegions3D().process(mask);
-                } else {
-                    rt = new AnalyzeRegions().process(mask);
+            // statistics (single object, no conncomp labeling done)
+            if (computeStatistics && hyperstack) {
+                // per time-point, intensities of the current channel
+                List<Map<Integer, RegionStatistics.Region>> regionsPerFrame = new ArrayList<>();
+                for (int t = 1; t < imp.getNFrames() + 1; t++) {
+                    regionsPerFrame.add(RegionStatistics.compute(HyperstackConversions.Volume(mask, 1, t),
+                            HyperstackConversions.Volume(imp, imp.getC(), t), Prefs.getThreads()));
                 }
-                rt.show("results");
-                // IJ.run did not work (error in ellipses): IJ.run(mask, "Analyze Regions 3D", "volume surface_area mean_breadth sphericity euler_number bounding_box centroid equivalent_ellipsoid ellipsoid_elongations max._inscribed surface_area_method=[Crofton (13 dirs.)] euler_connectivity=C26");
-                // IJ.run for intensities does work. but strange image name (no extension) required: IJ.run("Intensity Measurements 2D/3D", "input=[" + "mri-stack" + "] labels=[" + mask.getTitle() + "] mean stddev max min median numberofvoxels volume");
-            } catch (NoClassDefFoundError e) { // catches the AnalyzeRegions(), the IJ.run would be automatically caught with a pop-up window
-                IJ.error("MorpholibJ was not found. Please add the IJPB-plugins update site.");
+                RegionStatistics.toResultsTable(regionsPerFrame, mask.getCalibration()).show("statistics");
+            } else if (computeStatistics) {
+                RegionStatistics.toResultsTable(RegionStatistics.compute(mask, imp, Prefs.getThreads()), mask.getCalibration())
+                        .show("statistics");
             }
+
+            if (computeShapeStatistics) {
+                try {
+                    ResultsTable rt;
+                    ImagePlus shapeMask = mask;
+                    if (hyperstack) {
+                        IJ.log("Shape statistics are computed for the current time-point (" + imp.getT() + ") only");
+                        shapeMask = HyperstackConversions.Volume(mask, 1, imp.getT());
+                    }
+                    if (shapeMask.getNSlices() > 1) {
+                        rt = new AnalyzeRegions3D().process(shapeMask);
+                    } else {
+                        rt = new AnalyzeRegions().process(shapeMask);
+                    }
+                    rt.show("results");
+                    // IJ.run did not work (error in ellipses): IJ.run(mask, "Analyze Regions 3D", "volume surface_area mean_breadth sphericity euler_number bounding_box centroid equivalent_ellipsoid ellipsoid_elongations max._inscribed surface_area_method=[Crofton (13 dirs.)] euler_connectivity=C26");
+                    // IJ.run for intensities does work. but strange image name (no extension) required: IJ.run("Intensity Measurements 2D/3D", "input=[" + "mri-stack" + "] labels=[" + mask.getTitle() + "] mean stddev max min median numberofvoxels volume");
+                } catch (NoClassDefFoundError e) { // catches the AnalyzeRegions(), the IJ.run would be automatically caught with a pop-up window
+                    IJ.error("MorpholibJ was not found. Please add the IJPB-plugins update site.");
+                }
+            }
+        } catch (CancellationException e) {
+            IJ.log("Semi-manual Segmentation (3D) was canceled");
         }
 
         // restore the original roi manager settings
@@ -120,15 +211,52 @@ public class Manual3DSegmentationPlugin implements Command {
 
 
     /**
-     * sanity checks.
-     * @return whether checks were successful
+     * Creates the mask of an image with several channels or time-points: a single channel, one volume per time-point.
+     * With interpolate, the rois of each time-point are interpolated on their own and the roi manager gets the
+     * interpolated rois.
+     * @param rm roi manager with the drawn rois
+     * @param interpolate interpolate the slices between the drawn rois
+     * @return mask hyperstack
      */
-    private final boolean checkInput() {
-        if (imp.getNChannels()>1 || imp.getNFrames()>1) {
-            IJ.error("Image must have a single channel and single time-point.");
-            return false;
+    private ImagePlus createHyperstackMask(RoiManager rm, boolean interpolate) {
+        Roi[] rois = rm.getRoisAsArray();
+        if (!interpolate) {
+            return HyperstackConversions.BinaryMaskFromRois(rois, imp, false, true, Prefs.getThreads());
+        }
+
+        // key rois per time-point
+        List<List<Roi>> keyRoisPerFrame = new ArrayList<>();
+        for (int t = 0; t < imp.getNFrames() + 1; t++) {
+            keyRoisPerFrame.add(new ArrayList<Roi>());
         }
-        return true;
+        for (Roi roi : rois) {
+            Roi positioned = HyperstackConversions.HyperstackPosition(roi, imp);
+            int t = (imp.getNFrames() > 1) ? positioned.getTPosition() : 1;
+            if (t == 0) {
+                IJ.log("Warning: Roi " + roi.getName() + " is not associated to a specific time-point. Skipping");
+                continue;
+            }
+            keyRoisPerFrame.get(t).add(positioned);
+        }
+
+        List<Roi> interpolated = new ArrayList<>();
+        for (int t = 1; t < imp.getNFrames() + 1; t++) {
+            List<Roi> keyRois = keyRoisPerFrame.get(t);
+            if (keyRois.isEmpty()) {
+                continue;
+            }
+            RoiInterpolator.Result result = RoiInterpolator.interpolate(keyRois.toArray(new Roi[keyRois.size()]),
+                    imp.getWidth(), imp.getHeight(), imp.getNSlices(), Prefs.getThreads());
+            for (Roi roi : result.rois) {
+                roi.setPosition(0, roi.getZPosition(), imp.getNFrames() > 1 ? t : 0);
+                interpolated.add(roi);
+            }
+        }
+
+        Roi[] interpolatedRois = interpolated.toArray(new Roi[interpolated.size()]);
+        rm.reset();
+        RoiManagerBulkInsert.AddAll(rm, interpolatedRois);
+        return HyperstackConversions.BinaryMaskFromRois(interpolatedRois, imp, false, true, Prefs.getThreads());
     }
 
 
@@ -1,11 +1,16 @@
 package de.mpicbg.scf.segtools;
 
+import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.plugin.frame.RoiManager;
+import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import java.util.concurrent.CancellationException;
+
 /*
  * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
  * Date: 2019-10
@@ -14,6 +19,8 @@ import org.scijava.plugin.Plugin;
 /**
  * Small plugin to convert a 3D binary mask to a list of Rois in the Roi manager.
  * Image threshold is taken at 1 (relevant if image is not binary, for example a label image)
+ * Virtual stacks are streamed slice by slice, so masks larger than the memory can be converted.
+ * Bit-packed masks (BitMask.toImagePlus) are traced directly from their bits.
  */
 @Plugin(type = Command.class, menuPath = "Plugins>SegTools>Mask (3D) to ROI Manager ROIs")
 public class Mask3DToRoisPlugin implements Command {
@@ -21,6 +28,18 @@ public class Mask3DToRoisPlugin implements Command {
     @Parameter(label = "mask image")
     ImagePlus imp;
 
+    @Parameter(label = "rois", choices = {"one roi per slice", "one roi per object and slice"}, description = "one roi per slice: composite rois from ThresholdToSelection")
+    String roiModeStr = "one roi per slice";
+
+    @Parameter(label = "simplification tolerance (pixels)", min = "0", description = "only for one roi per object. 0: exact pixel outlines")
+    double tolerance = 0;
+
+    @Parameter
+    StatusService statusService;
+
+    // number of rois collected at once when streaming a virtual stack (progress updates)
+    final int streamingBatchSize = 100;
+
     @Override
     public void run() {
 
@@ -28,7 +47,29 @@ public class Mask3DToRoisPlugin implements Command {
         RoiManager rm = RoiManager.getRoiManager();
         rm.reset();
 
-        // fill roi manager
-        Conversions.RoisFromBinaryMask(rm, imp);
+        ContourTracer tracer = roiModeStr.equals("one roi per object and slice") ? new ContourTracer(tolerance) : null;
+
+        // fill roi manager (slices are traced in parallel). progress in the status bar, Esc cancels
+        try (TaskMonitor monitor = TaskMonitor.start("Mask to ROIs", statusService);
+             TaskMonitor.Timer timer = TaskMonitor.Time("tracing")) {
+            BitMask bitMask = BitMask.fromView(imp);
+            if (bitMask != null) {
+                // bit-packed mask (e.g. from ROIs to Mask): trace the bits directly, without the 8 bit view
+                RoiManagerBulkInsert.AddAll(rm, Conversions.RoisFromBitMask(bitMask, tracer, Prefs.getThreads()));
+            }
+            else if (imp.getStack().isVirtual()) {
+                // slices are loaded on demand: stream them instead of holding all rois and slices in memory
+                // rois are added to the roi manager at once at the end (also if canceled)
+                try (RoiManagerBulkInsert insert = new RoiManagerBulkInsert(rm, 0)) {
+                    HyperstackConversions.RoisFromBinaryMaskStreaming(imp, streamingBatchSize, Prefs.getThreads(),
+                            tracer, insert);
+                }
+            }
+            else {
+                Conversions.RoisFromBinaryMask(rm, imp, tracer, Prefs.getThreads());
+            }
+        } catch (CancellationException e) {
+            IJ.log("Mask (3D) to ROI Manager ROIs was canceled. The ROI manager holds the ROIs created so far");
+        }
     }
 }
@@ -0,0 +1,77 @@
+package de.mpicbg.scf.segtools;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Small helper to run a function for every slice of a stack on a fork-join pool.
+ * The function must only touch data belonging to its own slice.
+ */
+class ParallelSlices {
+
+    /**
+     * Runs body for every slice 1..nSlices and returns when all slices are done.
+     * Exceptions thrown by body are rethrown in the calling thread.
+     * If the calling thread runs a monitored task (see TaskMonitor), the task is checked for cancellation before every
+     * slice and the progress is reported.
+     *
+     * @param nSlices number of slices
+     * @param parallelism maximum number of worker threads. 1 (or less) runs all slices in the calling thread, in order.
+     * @param body function called with the (1-based) slice index
+     */
+    static void ForEach(int nSlices, int parallelism, IntConsumer body) {
+        // monitored task: cancellation point and progress per slice
+        TaskMonitor monitor = TaskMonitor.current();
+        if (monitor == null) {
+            Run(nSlices, parallelism, body);
+            return;
+        }
+        try {
+            Run(nSlices, parallelism, monitor.wrapLoop(nSlices, body));
+        } finally {
+            monitor.endLoop();
+        }
+    }
+
+
+    private static void Run(int nSlices, int parallelism, IntConsumer body) {
+        if (parallelism <= 1 || nSlices <= 1) {
+            for (int slice = 1; slice < nSlices + 1; slice++) {
+                body.accept(slice);
+            }
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, nSlices));
+        try {
+            pool.invoke(new SliceRange(body, 1, nSlices + 1));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    /** Recursively splits the slice range [from, to) until single slices remain. */
+    private static class SliceRange extends RecursiveAction {
+        private final IntConsumer body;
+        private final int from;
+        private final int to;
+
+        SliceRange(IntConsumer body, int from, int to) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                body.accept(from);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SliceRange(body, from, mid), new SliceRange(body, mid, to));
+        }
+    }
+}
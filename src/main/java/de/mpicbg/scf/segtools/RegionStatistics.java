@@ -0,0 +1,299 @@
+package de.mpicbg.scf.segtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Basic statistics of all labels of a label image (or the foreground of a binary mask, which is a single label 255),
+ * optionally with intensities of a grayscale image. Computed in a single pass over the slices: the slices are split
+ * into contiguous chunks, every chunk is accumulated by its own task, and the chunk results are merged at the end.
+ * Background (0) is not measured.
+ */
+public class RegionStatistics {
+
+    /** Statistics of a single label. Positions are calibrated, bounds are in pixels (z: 1-based slice) */
+    public static class Region {
+        public final int label;
+        public final long voxelCount;
+        public final double volume;
+        public final int xMin, xMax, yMin, yMax, zMin, zMax;
+        public final double centroidX, centroidY, centroidZ;
+        /** intensity statistics, NaN if no grayscale image was given */
+        public final double mean, min, max, stdDev;
+
+        private Region(Accumulator acc, Calibration cal, boolean hasIntensity) {
+            label = acc.label;
+            voxelCount = acc.count;
+            volume = acc.count * cal.pixelWidth * cal.pixelHeight * cal.pixelDepth;
+            xMin = acc.xMin;
+            xMax = acc.xMax;
+            yMin = acc.yMin;
+            yMax = acc.yMax;
+            zMin = acc.zMin;
+            zMax = acc.zMax;
+            // voxel indices (x, y, z from 0) on all axes, like MorphoLibJ's Centroid3D
+            centroidX = ((double) acc.sumX / acc.count - cal.xOrigin) * cal.pixelWidth;
+            centroidY = ((double) acc.sumY / acc.count - cal.yOrigin) * cal.pixelHeight;
+            centroidZ = ((double) acc.sumZ / acc.count - 1 - cal.zOrigin) * cal.pixelDepth;
+
+            if (hasIntensity) {
+                mean = acc.meanI;
+                min = acc.minI;
+                max = acc.maxI;
+                stdDev = (acc.countI > 1) ? Math.sqrt(acc.m2I / (acc.countI - 1)) : 0;
+            } else {
+                mean = min = max = stdDev = Double.NaN;
+            }
+        }
+    }
+
+
+    /** Running sums of one label in one chunk of slices */
+    private static class Accumulator {
+        final int label;
+        long count;
+        long sumX, sumY, sumZ;
+        int xMin = Integer.MAX_VALUE, yMin = Integer.MAX_VALUE, zMin = Integer.MAX_VALUE;
+        int xMax = -1, yMax = -1, zMax = -1;
+        // intensities: running mean and sum of squared deviations (Welford), merged per chunk (Chan et al.)
+        long countI;
+        double meanI, m2I;
+        double minI = Double.POSITIVE_INFINITY, maxI = Double.NEGATIVE_INFINITY;
+
+        Accumulator(int label) {
+            this.label = label;
+        }
+
+        /** adds the run [xStart, xEnd] (inclusive) of row y */
+        void addRun(int slice, int y, int xStart, int xEnd) {
+            long len = xEnd - xStart + 1;
+            count += len;
+            sumX += (long) (xStart + xEnd) * len / 2;
+            sumY += y * len;
+            sumZ += slice * len;
+            xMin = Math.min(xMin, xStart);
+            xMax = Math.max(xMax, xEnd);
+            yMin = Math.min(yMin, y);
+            yMax = Math.max(yMax, y);
+            zMin = Math.min(zMin, slice);
+            zMax = Math.max(zMax, slice);
+        }
+
+        void addIntensity(double value) {
+            countI++;
+            double delta = value - meanI;
+            meanI += delta / countI;
+            m2I += delta * (value - meanI);
+            minI = Math.min(minI, value);
+            maxI = Math.max(maxI, value);
+        }
+
+        void merge(Accumulator other) {
+            count += other.count;
+            sumX += other.sumX;
+            sumY += other.sumY;
+            sumZ += other.sumZ;
+            xMin = Math.min(xMin, other.xMin);
+            xMax = Math.max(xMax, other.xMax);
+            yMin = Math.min(yMin, other.yMin);
+            yMax = Math.max(yMax, other.yMax);
+            zMin = Math.min(zMin, other.zMin);
+            zMax = Math.max(zMax, other.zMax);
+            if (other.countI > 0) {
+                long n = countI + other.countI;
+                double delta = other.meanI - meanI;
+                meanI += delta * other.countI / n;
+                m2I += other.m2I + delta * delta * ((double) countI * other.countI / n);
+                countI = n;
+            }
+            minI = Math.min(minI, other.minI);
+            maxI = Math.max(maxI, other.maxI);
+        }
+    }
+
+
+    /**
+     * Computes the statistics of all labels.
+     *
+     * @param labelImp label image (8, 16 or 32 bit) or binary mask. single channel and time point
+     * @param grayImp grayscale image for intensity statistics, same x,y,z dimensions as labelImp. null: no intensities
+     * @param parallelism number of slice chunks processed at the same time. 1 runs in the calling thread.
+     * @return statistics per label, sorted by label. null if the dimensions of the images do not match.
+     */
+    public static Map<Integer, Region> compute(ImagePlus labelImp, ImagePlus grayImp, int parallelism) {
+        final int width = labelImp.getWidth();
+        final int height = labelImp.getHeight();
+        final int nslices = labelImp.getNSlices();
+
+        if (grayImp != null && (grayImp.getWidth() != width || grayImp.getHeight() != height || grayImp.getNSlices() != nslices)) {
+            IJ.log("Image dimensions of label and grayscale image differ! Returning null");
+            return null;
+        }
+
+        final ImageStack labelStack = labelImp.getStack();
+        final ImageStack grayStack = (grayImp == null) ? null : grayImp.getStack();
+
+        // contiguous chunks of slices, one accumulator map per chunk
+        final int nchunks = Math.max(1, Math.min(parallelism, nslices));
+        final int[] chunkStart = new int[nchunks + 1];
+        for (int chunk = 0; chunk < nchunks + 1; chunk++) {
+            chunkStart[chunk] = 1 + (int) ((long) chunk * nslices / nchunks);
+        }
+
+        @SuppressWarnings("unchecked")
+        final Map<Integer, Accumulator>[] chunkResults = new Map[nchunks];
+
+        ParallelSlices.ForEach(nchunks, parallelism, chunk -> {
+            Map<Integer, Accumulator> accumulators = new HashMap<>();
+            for (int slice = chunkStart[chunk - 1]; slice < chunkStart[chunk]; slice++) {
+                Object grayPixels = (grayStack == null) ? null : grayStack.getProcessor(slice).convertToFloatProcessor().getPixels();
+                AccumulateSlice(labelStack.getPixels(slice), grayPixels, width, height, slice, accumulators);
+            }
+            chunkResults[chunk - 1] = accumulators;
+        });
+
+        // merge in chunk order
+        Map<Integer, Accumulator> merged = new TreeMap<>();
+        for (Map<Integer, Accumulator> accumulators : chunkResults) {
+            for (Accumulator acc : accumulators.values()) {
+                Accumulator total = merged.get(acc.label);
+                if (total == null) {
+                    merged.put(acc.label, acc);
+                } else {
+                    total.merge(acc);
+                }
+            }
+        }
+
+        Calibration cal = labelImp.getCalibration();
+        Map<Integer, Region> regions = new TreeMap<>();
+        for (Accumulator acc : merged.values()) {
+            regions.put(acc.label, new Region(acc, cal, grayStack != null));
+        }
+        return regions;
+    }
+
+
+    /**
+     * Writes statistics into a results table, one row per label.
+     *
+     * @param regions statistics, see compute
+     * @param cal calibration of the label image, for the unit of the volume
+     * @return table with columns Label, VoxelCount, Volume, bounding box, Centroid and (if measured) intensities
+     */
+    public static ResultsTable toResultsTable(Map<Integer, Region> regions, Calibration cal) {
+        ResultsTable rt = new ResultsTable();
+        AddRows(rt, regions, cal, 0);
+        return rt;
+    }
+
+
+    /**
+     * Like toResultsTable(Map, Calibration), for the statistics of several time-points: one row per frame and label.
+     *
+     * @param regionsPerFrame statistics of frame 1, 2, ..., see compute
+     * @param cal calibration of the label image, for the unit of the volume
+     * @return table with the columns of toResultsTable(Map, Calibration) and a Frame column
+     */
+    public static ResultsTable toResultsTable(List<Map<Integer, Region>> regionsPerFrame, Calibration cal) {
+        ResultsTable rt = new ResultsTable();
+        for (int frame = 1; frame < regionsPerFrame.size() + 1; frame++) {
+            AddRows(rt, regionsPerFrame.get(frame - 1), cal, frame);
+        }
+        return rt;
+    }
+
+
+    /** Helper for toResultsTable: one row per label. frame 0: no Frame column */
+    private static void AddRows(ResultsTable rt, Map<Integer, Region> regions, Calibration cal, int frame) {
+        String unit = cal.getUnit();
+
+        for (Region region : regions.values()) {
+            rt.incrementCounter();
+            if (frame > 0) {
+                rt.addValue("Frame", frame);
+            }
+            rt.addValue("Label", region.label);
+            rt.addValue("VoxelCount", region.voxelCount);
+            rt.addValue("Volume [" + unit + "^3]", region.volume);
+            rt.addValue("XMin", region.xMin);
+            rt.addValue("XMax", region.xMax);
+            rt.addValue("YMin", region.yMin);
+            rt.addValue("YMax", region.yMax);
+            rt.addValue("ZMin", region.zMin);
+            rt.addValue("ZMax", region.zMax);
+            rt.addValue("Centroid.X", region.centroidX);
+            rt.addValue("Centroid.Y", region.centroidY);
+            rt.addValue("Centroid.Z", region.centroidZ);
+            if (!Double.isNaN(region.mean)) {
+                rt.addValue("Mean", region.mean);
+                rt.addValue("Min", region.min);
+                rt.addValue("Max", region.max);
+                rt.addValue("StdDev", region.stdDev);
+            }
+        }
+    }
+
+
+    /**
+     * Helper for compute. Adds one slice to the accumulators: runs of equal labels in every row, plus the intensity
+     * of every foreground pixel.
+     */
+    private static void AccumulateSlice(Object labelPixels, Object grayPixels, int width, int height, int slice,
+                                        Map<Integer, Accumulator> accumulators) {
+        float[] gray = (float[]) grayPixels;
+        Accumulator last = null;
+
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            int x = 0;
+            while (x < width) {
+                int label = LabelAt(labelPixels, offset + x);
+                if (label == 0) {
+                    x++;
+                    continue;
+                }
+
+                int xStart = x;
+                while (x < width && LabelAt(labelPixels, offset + x) == label) {
+                    x++;
+                }
+
+                // neighbouring runs often belong to the same label
+                if (last == null || last.label != label) {
+                    last = accumulators.get(label);
+                    if (last == null) {
+                        last = new Accumulator(label);
+                        accumulators.put(label, last);
+                    }
+                }
+                last.addRun(slice, y, xStart, x - 1);
+                if (gray != null) {
+                    for (int i = offset + xStart; i < offset + x; i++) {
+                        last.addIntensity(gray[i]);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /** Helper for AccumulateSlice. Label value of an 8, 16 or 32 bit pixel array */
+    private static int LabelAt(Object pixels, int i) {
+        if (pixels instanceof byte[]) {
+            return ((byte[]) pixels)[i] & 0xff;
+        }
+        if (pixels instanceof short[]) {
+            return ((short[]) pixels)[i] & 0xffff;
+        }
+        return (int) ((float[]) pixels)[i];
+    }
+}
@@ -0,0 +1,383 @@
+package de.mpicbg.scf.segtools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Sparse binary 3D mask, stored as run-length encoded rows. Only slices and rows with foreground use memory, so large
+ * and sparsely covered volumes can be handled without allocating a dense stack.
+ * Slices are counted from 1 (like ImageStack slices), x and y in pixels.
+ * Writing to different slices from different threads is safe, writing to the same slice is not.
+ */
+public class RleMask {
+
+    private final int width;
+    private final int height;
+    private final int nSlices;
+
+    // per slice (index slice-1) and row: runs as pairs (xStart, xEnd) with xEnd exclusive, sorted and disjoint.
+    // null for empty slices and rows
+    private final int[][][] runs;
+
+
+    /**
+     * Creates an empty mask.
+     *
+     * @param width, height, nSlices: dimensions
+     */
+    public RleMask(int width, int height, int nSlices) {
+        this.width = width;
+        this.height = height;
+        this.nSlices = nSlices;
+        this.runs = new int[nSlices][][];
+    }
+
+
+    /**
+     * Creates a sparse mask from a binary image. Pixels with value >= 1 are foreground (like RoisFromBinaryMask,
+     * therefore a label image as input works as well). The image is read slice by slice and not modified.
+     *
+     * @param mask binary image (e.g. 0 background, 255 foreground)
+     * @return sparse mask
+     */
+    public static RleMask fromImage(ImagePlus mask) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        int nSlices = mask.getNSlices();
+
+        RleMask rle = new RleMask(width, height, nSlices);
+        ImageStack stack = mask.getStack();
+
+        for (int slice = 1; slice < nSlices + 1; slice++) {
+            rle.addSlice(slice, stack.getProcessor(slice));
+        }
+
+        return rle;
+    }
+
+
+    /**
+     * Adds all pixels with value >= 1 of a 2d processor to a slice.
+     *
+     * @param slice 1-based slice
+     * @param ip processor with the same width and height as the mask
+     */
+    public void addSlice(int slice, ImageProcessor ip) {
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            int x = 0;
+            while (x < width) {
+                if (ip.getf(offset + x) < 1) {
+                    x++;
+                    continue;
+                }
+                int xStart = x;
+                while (x < width && ip.getf(offset + x) >= 1) {
+                    x++;
+                }
+                addRun(slice, y, xStart, x);
+            }
+        }
+    }
+
+
+    /**
+     * Adds the area of a roi to a slice. Same pixels as ImageProcessor.fill(roi), but without a dense slice
+     * (except for line and point rois, which are rasterized through a temporary slice).
+     *
+     * @param slice 1-based slice
+     * @param roi area roi in image coordinates
+     */
+    public void addRoi(int slice, Roi roi) {
+        int[][] roiRuns = RoiRuns(roi, width, height);
+        for (int y = 0; y < height; y++) {
+            if (roiRuns[y] == null) {
+                continue;
+            }
+            for (int r = 0; r < roiRuns[y].length; r += 2) {
+                addRun(slice, y, roiRuns[y][r], roiRuns[y][r + 1]);
+            }
+        }
+    }
+
+
+    /**
+     * Rasterizes a roi into row runs (same format as the rows of RleMask).
+     *
+     * @param roi roi in image coordinates
+     * @param width, height: image dimensions, the roi is clipped to them
+     * @return runs per row, null for rows without pixels
+     */
+    static int[][] RoiRuns(Roi roi, int width, int height) {
+        int[][] rows = new int[height][];
+
+        if (!roi.isArea()) {
+            // lines and points: rasterize like ImageProcessor.fill
+            ImageProcessor scratch = new ByteProcessor(width, height);
+            scratch.setValue(255);
+            scratch.fill(roi);
+            for (int y = 0; y < height; y++) {
+                rows[y] = RowRuns(scratch, null, y * width, 0, width);
+            }
+            return rows;
+        }
+
+        Rectangle bounds = roi.getBounds();
+        ImageProcessor roiMask = roi.getMask(); // null for rectangles
+
+        int xFrom = Math.max(bounds.x, 0);
+        int xTo = Math.min(bounds.x + bounds.width, width);
+        int yFrom = Math.max(bounds.y, 0);
+        int yTo = Math.min(bounds.y + bounds.height, height);
+
+        for (int y = yFrom; y < yTo; y++) {
+            if (roiMask == null) {
+                rows[y] = (xFrom < xTo) ? new int[]{xFrom, xTo} : null;
+            }
+            else {
+                rows[y] = RowRuns(roiMask, bounds, (y - bounds.y) * bounds.width, xFrom, xTo);
+            }
+        }
+
+        return rows;
+    }
+
+
+    /** Helper for RoiRuns. Runs of non-zero pixels in one row of ip, for image x in [xFrom, xTo).
+     * @param origin position of ip in the image (null: ip covers the whole image)
+     * @param offset index of the first pixel of the row in ip
+     */
+    private static int[] RowRuns(ImageProcessor ip, Rectangle origin, int offset, int xFrom, int xTo) {
+        int dx = (origin == null) ? 0 : origin.x;
+
+        int[] row = null;
+        int nvalues = 0;
+
+        int x = xFrom;
+        while (x < xTo) {
+            if (ip.get(offset + x - dx) == 0) {
+                x++;
+                continue;
+            }
+            int xStart = x;
+            while (x < xTo && ip.get(offset + x - dx) != 0) {
+                x++;
+            }
+            if (row == null) {
+                row = new int[4];
+            }
+            else if (nvalues + 2 > row.length) {
+                row = Arrays.copyOf(row, 2 * row.length);
+            }
+            row[nvalues++] = xStart;
+            row[nvalues++] = x;
+        }
+
+        return (row == null) ? null : Arrays.copyOf(row, nvalues);
+    }
+
+
+    /**
+     * Adds the run [xStart, xEnd) of row y of a slice (union with existing foreground).
+     *
+     * @param slice 1-based slice
+     * @param y row
+     * @param xStart first pixel of the run
+     * @param xEnd first pixel after the run
+     */
+    public void addRun(int slice, int y, int xStart, int xEnd) {
+        if (xEnd <= xStart) {
+            return;
+        }
+
+        int[][] sliceRuns = runs[slice - 1];
+        if (sliceRuns == null) {
+            sliceRuns = new int[height][];
+            runs[slice - 1] = sliceRuns;
+        }
+
+        int[] row = sliceRuns[y];
+        if (row == null) {
+            sliceRuns[y] = new int[]{xStart, xEnd};
+            return;
+        }
+
+        // merge with all runs that overlap or touch [xStart, xEnd)
+        int[] merged = new int[row.length + 2];
+        int nvalues = 0;
+        boolean inserted = false;
+        for (int r = 0; r < row.length; r += 2) {
+            if (row[r + 1] < xStart) { // before the new run
+                merged[nvalues++] = row[r];
+                merged[nvalues++] = row[r + 1];
+            }
+            else if (row[r] > xEnd) { // after the new run
+                if (!inserted) {
+                    merged[nvalues++] = xStart;
+                    merged[nvalues++] = xEnd;
+                    inserted = true;
+                }
+                merged[nvalues++] = row[r];
+                merged[nvalues++] = row[r + 1];
+            }
+            else { // overlapping
+                xStart = Math.min(xStart, row[r]);
+                xEnd = Math.max(xEnd, row[r + 1]);
+            }
+        }
+        if (!inserted) {
+            merged[nvalues++] = xStart;
+            merged[nvalues++] = xEnd;
+        }
+
+        sliceRuns[y] = Arrays.copyOf(merged, nvalues);
+    }
+
+
+    /**
+     * @param slice 1-based slice
+     * @param y row
+     * @return runs of the row as pairs (xStart, xEnd), xEnd exclusive. Empty array for empty rows.
+     */
+    public int[] getRuns(int slice, int y) {
+        int[][] sliceRuns = runs[slice - 1];
+        if (sliceRuns == null || sliceRuns[y] == null) {
+            return new int[0];
+        }
+        return sliceRuns[y].clone();
+    }
+
+
+    /**
+     * @param slice 1-based slice
+     * @return whether the slice has no foreground
+     */
+    public boolean isEmpty(int slice) {
+        return runs[slice - 1] == null;
+    }
+
+
+    /**
+     * @param slice 1-based slice
+     * @return bounding box of the foreground of a slice, null for empty slices
+     */
+    public Rectangle getBounds(int slice) {
+        int[][] sliceRuns = runs[slice - 1];
+        if (sliceRuns == null) {
+            return null;
+        }
+
+        int xMin = Integer.MAX_VALUE, xMax = Integer.MIN_VALUE, yMin = -1, yMax = -1;
+        for (int y = 0; y < height; y++) {
+            int[] row = sliceRuns[y];
+            if (row == null) {
+                continue;
+            }
+            if (yMin < 0) yMin = y;
+            yMax = y;
+            xMin = Math.min(xMin, row[0]);
+            xMax = Math.max(xMax, row[row.length - 1]);
+        }
+
+        return new Rectangle(xMin, yMin, xMax - xMin, yMax - yMin + 1);
+    }
+
+
+    /**
+     * @return number of foreground voxels
+     */
+    public long getVoxelCount() {
+        long count = 0;
+        for (int[][] sliceRuns : runs) {
+            if (sliceRuns == null) {
+                continue;
+            }
+            for (int[] row : sliceRuns) {
+                if (row == null) {
+                    continue;
+                }
+                for (int r = 0; r < row.length; r += 2) {
+                    count += row[r + 1] - row[r];
+                }
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Densifies the region box of a single slice.
+     *
+     * @param slice 1-based slice
+     * @param box region to densify (null: whole slice)
+     * @return 8 bit processor of size box with foreground 255, background 0
+     */
+    public ImageProcessor getSliceProcessor(int slice, Rectangle box) {
+        if (box == null) {
+            box = new Rectangle(0, 0, width, height);
+        }
+
+        ByteProcessor ip = new ByteProcessor(box.width, box.height);
+        byte[] pixels = (byte[]) ip.getPixels();
+
+        int[][] sliceRuns = runs[slice - 1];
+        if (sliceRuns == null) {
+            return ip;
+        }
+
+        for (int y = box.y; y < box.y + box.height; y++) {
+            int[] row = sliceRuns[y];
+            if (row == null) {
+                continue;
+            }
+            int offset = (y - box.y) * box.width - box.x;
+            for (int r = 0; r < row.length; r += 2) {
+                int xStart = Math.max(row[r], box.x);
+                int xEnd = Math.min(row[r + 1], box.x + box.width);
+                if (xStart < xEnd) {
+                    Arrays.fill(pixels, offset + xStart, offset + xEnd, (byte) 255);
+                }
+            }
+        }
+
+        return ip;
+    }
+
+
+    /**
+     * Densifies the whole mask. Only use this when a dense image is actually needed.
+     *
+     * @return 8 bit binary mask with foreground value 255, background=0. uncalibrated
+     */
+    public ImagePlus toImagePlus() {
+        ImageStack stack = new ImageStack(width, height);
+        for (int slice = 1; slice < nSlices + 1; slice++) {
+            stack.addSlice("", getSliceProcessor(slice, null));
+        }
+
+        ImagePlus mask = new ImagePlus("binary mask", stack);
+        if (nSlices > 1) {
+            mask.setDimensions(1, nSlices, 1);
+        }
+        return mask;
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getNSlices() {
+        return nSlices;
+    }
+}
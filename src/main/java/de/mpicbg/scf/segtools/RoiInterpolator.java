@@ -0,0 +1,194 @@
+package de.mpicbg.scf.segtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.plugin.filter.EDM;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Shape-based interpolation of key-frame rois: the rois of two neighbouring key slices are converted to signed
+ * distance maps, which are blended linearly for every slice in between. The interpolated shape of a slice is where the
+ * blended distance is positive. Gaps between key slices are processed in parallel, and the mask is written directly
+ * while interpolating, so rois and mask are created in a single pass.
+ */
+public class RoiInterpolator {
+
+    /** Result of an interpolation: rois of all slices between the first and the last key slice, and the 3D mask */
+    public static class Result {
+        /** key-frame rois and interpolated rois, in slice order, associated with slices */
+        public final Roi[] rois;
+        /** 8 bit binary mask with foreground 255, background 0. uncalibrated */
+        public final ImagePlus mask;
+
+        Result(Roi[] rois, ImagePlus mask) {
+            this.rois = rois;
+            this.mask = mask;
+        }
+    }
+
+
+    /**
+     * Interpolates the rois between key slices. All rois on the same slice together form the key shape of that slice.
+     * Slices before the first and after the last key slice stay empty.
+     *
+     * @param keyRois rois associated with slices (rois without slice are skipped in 3D)
+     * @param width, height, nslices: target dimensions
+     * @param parallelism number of gaps between key slices processed at the same time. 1 runs in the calling thread.
+     * @return interpolated rois and mask
+     */
+    public static Result interpolate(Roi[] keyRois, int width, int height, int nslices, int parallelism) {
+
+        ImagePlus mask = IJ.createImage("binary mask", "8-bit black", width, height, nslices);
+        final ImageStack stack = mask.getStack();
+
+        // key rois per slice
+        List<List<Roi>> roisPerSlice = new ArrayList<>(nslices + 1);
+        for (int slice = 0; slice < nslices + 1; slice++) {
+            roisPerSlice.add(new ArrayList<Roi>());
+        }
+        for (int idx = 0; idx < keyRois.length; idx++) {
+            int slice = keyRois[idx].getZPosition();
+            if (nslices > 1 && slice == 0) {
+                IJ.log("Warning: Roi " + idx + " is not associated to a specific slice. Skipping");
+                continue;
+            }
+            if (slice <= nslices) {
+                roisPerSlice.get(Math.max(slice, 1)).add(keyRois[idx]);
+            }
+        }
+
+        // draw the key slices into the mask, these slices are the input of the interpolation
+        final List<Integer> keySlices = new ArrayList<>();
+        final List<Rectangle> keyBounds = new ArrayList<>();
+        for (int slice = 1; slice < nslices + 1; slice++) {
+            if (roisPerSlice.get(slice).isEmpty()) {
+                continue;
+            }
+            ImageProcessor maskip = stack.getProcessor(slice);
+            maskip.setValue(255);
+            Rectangle bounds = null;
+            for (Roi roi : roisPerSlice.get(slice)) {
+                maskip.fill(roi);
+                bounds = (bounds == null) ? roi.getBounds() : bounds.union(roi.getBounds());
+            }
+            // rois completely outside of the image: nothing was drawn, the slice is no key slice
+            bounds = bounds.intersection(new Rectangle(0, 0, width, height));
+            if (bounds.isEmpty()) {
+                continue;
+            }
+            keySlices.add(slice);
+            keyBounds.add(bounds);
+        }
+
+        // interpolate the gaps, each gap writes only its own (inner) slices
+        final int ngaps = Math.max(keySlices.size() - 1, 0);
+        final Roi[][] gapRois = new Roi[ngaps][];
+
+        ParallelSlices.ForEach(ngaps, parallelism, gap -> {
+            int sliceA = keySlices.get(gap - 1);
+            int sliceB = keySlices.get(gap);
+            Rectangle box = keyBounds.get(gap - 1).union(keyBounds.get(gap));
+            gapRois[gap - 1] = interpolateGap(stack, sliceA, sliceB, box, nslices > 1);
+        });
+
+        // collect in slice order: key rois (also those outside of the image), then the interpolated rois
+        List<Roi> roiList = new ArrayList<>();
+        for (int slice = 1; slice < nslices + 1; slice++) {
+            roiList.addAll(roisPerSlice.get(slice));
+        }
+        for (Roi[] rois : gapRois) {
+            for (Roi roi : rois) {
+                if (roi != null) {
+                    roiList.add(roi);
+                }
+            }
+        }
+        if (nslices > 1) {
+            roiList.sort(Comparator.comparingInt(Roi::getZPosition)); // stable: key rois first on their slice
+        }
+
+        mask.setSlice(1);
+        return new Result(roiList.toArray(new Roi[roiList.size()]), mask);
+    }
+
+
+    /** Interpolates the slices strictly between sliceA and sliceB inside box, writes them into stack and traces them.
+     * @return one roi per inner slice (null for empty slices)
+     */
+    private static Roi[] interpolateGap(ImageStack stack, int sliceA, int sliceB, Rectangle box, boolean associate) {
+        Roi[] rois = new Roi[Math.max(sliceB - sliceA - 1, 0)];
+        if (rois.length == 0) {
+            return rois;
+        }
+
+        float[] distA = SignedDistance(stack.getProcessor(sliceA), box);
+        float[] distB = SignedDistance(stack.getProcessor(sliceB), box);
+
+        for (int slice = sliceA + 1; slice < sliceB; slice++) {
+            float t = (float) (slice - sliceA) / (sliceB - sliceA);
+
+            ImageProcessor maskip = stack.getProcessor(slice);
+            byte[] pixels = (byte[]) maskip.getPixels();
+            int width = maskip.getWidth();
+
+            for (int y = 0; y < box.height; y++) {
+                for (int x = 0; x < box.width; x++) {
+                    int i = y * box.width + x;
+                    if ((1 - t) * distA[i] + t * distB[i] > 0) {
+                        pixels[(y + box.y) * width + x + box.x] = (byte) 255;
+                    }
+                }
+            }
+
+            Roi roi = Conversions.TraceRoi(maskip, 255, 255, box);
+            if (roi != null && associate) {
+                roi.setPosition(1, slice, 1);
+            }
+            rois[slice - sliceA - 1] = roi;
+        }
+
+        return rois;
+    }
+
+
+    /** Signed euclidean distance map of the foreground (non-zero pixels) of ip inside box:
+     * positive inside (distance to the background), negative outside (distance to the foreground).
+     */
+    private static float[] SignedDistance(ImageProcessor ip, Rectangle box) {
+        // one pixel of background around the box, so the distance maps see the object border everywhere
+        ByteProcessor inside = new ByteProcessor(box.width + 2, box.height + 2);
+        ByteProcessor outside = new ByteProcessor(box.width + 2, box.height + 2);
+        outside.setValue(255);
+        outside.fill();
+
+        for (int y = 0; y < box.height; y++) {
+            for (int x = 0; x < box.width; x++) {
+                if (ip.get(x + box.x, y + box.y) != 0) {
+                    inside.set(x + 1, y + 1, 255);
+                    outside.set(x + 1, y + 1, 0);
+                }
+            }
+        }
+
+        EDM edm = new EDM();
+        FloatProcessor distInside = edm.makeFloatEDM(inside, 0, false);
+        FloatProcessor distOutside = edm.makeFloatEDM(outside, 0, false);
+
+        float[] dist = new float[box.width * box.height];
+        for (int y = 0; y < box.height; y++) {
+            for (int x = 0; x < box.width; x++) {
+                dist[y * box.width + x] = distInside.getf(x + 1, y + 1) - distOutside.getf(x + 1, y + 1);
+            }
+        }
+        return dist;
+    }
+}
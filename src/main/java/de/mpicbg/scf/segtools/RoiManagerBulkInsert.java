@@ -0,0 +1,119 @@
+package de.mpicbg.scf.segtools;
+
+import ij.IJ;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
+
+import java.awt.EventQueue;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Adds many rois to the ROI manager at once. The rois are collected (with progress in the status bar) and handed to
+ * the ROI manager in a single RoiManager.setOverlay call when the insert is closed, which fills the list in one go
+ * instead of updating it for every roi. setOverlay replaces the content of the ROI manager, so rois already in the
+ * manager are passed along first.
+ *
+ * Usage: create, pass batches of rois to accept, then close. Best called from a worker thread, not from the event
+ * dispatch thread.
+ */
+class RoiManagerBulkInsert implements Consumer<Roi[]>, AutoCloseable {
+
+    private final RoiManager rm;
+    private final int expectedCount;
+    private final List<Roi> rois = new ArrayList<>();
+    private boolean closed = false;
+
+
+    /**
+     * @param rm ROI manager to fill
+     * @param expectedCount number of rois that will be added, for the progress bar. 0: unknown, no progress bar
+     */
+    RoiManagerBulkInsert(RoiManager rm, int expectedCount) {
+        this.rm = rm;
+        this.expectedCount = expectedCount;
+    }
+
+
+    /**
+     * Adds rois to the ROI manager with a single refresh of its list.
+     * @param rm ROI manager to fill
+     * @param rois rois to add, in this order
+     */
+    static void AddAll(RoiManager rm, Roi[] rois) {
+        try (RoiManagerBulkInsert insert = new RoiManagerBulkInsert(rm, rois.length)) {
+            insert.accept(rois);
+        }
+    }
+
+
+    /** Collects a batch of rois, they are added to the ROI manager by close. */
+    @Override
+    public void accept(final Roi[] batch) {
+        rois.addAll(Arrays.asList(batch));
+
+        if (expectedCount > 0) {
+            IJ.showProgress(rois.size(), expectedCount);
+        }
+        IJ.showStatus("Collecting rois for ROI manager: " + rois.size());
+    }
+
+
+    /** @return number of rois added so far */
+    int getCount() {
+        return rois.size();
+    }
+
+
+    /**
+     * Adds the collected rois to the ROI manager (after the rois it already holds) and resets the progress bar.
+     * Also called when the task fails or is canceled, so the ROI manager holds the rois collected so far.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (!rois.isEmpty()) {
+            IJ.showStatus("Adding " + rois.size() + " rois to ROI manager");
+            OnEventThread(() -> {
+                Overlay overlay = new Overlay();
+                for (Roi roi : rm.getRoisAsArray()) {
+                    overlay.add(roi);
+                }
+                for (Roi roi : rois) {
+                    overlay.add(roi);
+                }
+                rm.setOverlay(overlay);
+            });
+        }
+        IJ.showProgress(1.0);
+        IJ.showStatus("");
+    }
+
+
+    /** Helper: runs r on the event dispatch thread and waits for it */
+    private static void OnEventThread(Runnable r) {
+        if (EventQueue.isDispatchThread()) {
+            r.run();
+            return;
+        }
+        try {
+            EventQueue.invokeAndWait(r);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
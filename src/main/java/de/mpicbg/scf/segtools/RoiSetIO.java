@@ -0,0 +1,102 @@
+package de.mpicbg.scf.segtools;
+
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reads and writes ImageJ RoiSet.zip files (same format as ROI Manager > More > Open/Save) without a RoiManager,
+ * so it also works headless and from several threads.
+ */
+public class RoiSetIO {
+
+    /**
+     * Reads all rois of a RoiSet.zip file.
+     *
+     * @param zipFile RoiSet.zip file
+     * @return rois in file order
+     * @throws IOException if the file cannot be read
+     */
+    public static Roi[] read(File zipFile) throws IOException {
+        List<Roi> roiList = new ArrayList<>();
+
+        try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(zipFile)))) {
+            byte[] buffer = new byte[8192];
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (!name.endsWith(".roi")) {
+                    continue;
+                }
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                int len;
+                while ((len = in.read(buffer)) > 0) {
+                    bytes.write(buffer, 0, len);
+                }
+
+                Roi roi = new RoiDecoder(bytes.toByteArray(), name).getRoi();
+                if (roi != null) {
+                    roiList.add(roi);
+                }
+            }
+        }
+
+        return roiList.toArray(new Roi[roiList.size()]);
+    }
+
+
+    /**
+     * Writes rois to a RoiSet.zip file. Roi names are used as entry names, rois without (or with duplicate) names
+     * get a name from their slice and index, like the ROI manager does.
+     *
+     * @param rois rois to write
+     * @param zipFile target file, overwritten if it exists
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Roi[] rois, File zipFile) throws IOException {
+        Set<String> usedNames = new HashSet<>();
+
+        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile)))) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(zos));
+            RoiEncoder encoder = new RoiEncoder(out);
+
+            for (int idx = 0; idx < rois.length; idx++) {
+                Roi roi = rois[idx];
+
+                String name = roi.getName();
+                if (name == null || usedNames.contains(name)) {
+                    name = String.format("%04d-%05d", roi.getZPosition(), idx + 1);
+                }
+                // the generated name may be taken by a named roi as well
+                String unique = name;
+                for (int suffix = 1; usedNames.contains(unique); suffix++) {
+                    unique = name + "-" + suffix;
+                }
+                name = unique;
+                usedNames.add(name);
+
+                zos.putNextEntry(new ZipEntry(name + ".roi"));
+                encoder.write(roi);
+                out.flush();
+            }
+        }
+    }
+
+}
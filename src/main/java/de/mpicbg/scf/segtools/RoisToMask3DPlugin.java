@@ -2,13 +2,19 @@ package de.mpicbg.scf.segtools;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
 import ij.plugin.frame.RoiManager;
+import org.scijava.app.StatusService;
 import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
 
 /*
  * Author: Noreen Walker, Scientific Computing Facility, MPI-CBG
@@ -16,7 +22,7 @@ import java.io.File;
  */
 
 /**
- * Small plugin to convert a list of Rois in the Roi manager to a 3D binary mask.
+ * Small plugin to convert a list of Rois in the Roi manager to a 3D binary mask (or a 3D label image).
  */
 @Plugin(type = Command.class, menuPath = "Plugins>SegTools>ROI Manager ROIs to Mask (3D)")
 public class RoisToMask3DPlugin implements Command {
@@ -25,6 +31,13 @@ public class RoisToMask3DPlugin implements Command {
 
     final String helpURL="https://github.com/mpicbg-scicomp/segmentation_3d_tools";
 
+    final String[] outputChoices={"binary mask", "label image (one label per ROI)", "label image (one label per ROI name)",
+            "binary mask, streamed to disk (TIFF sequence)", "binary mask, streamed to disk (raw)",
+            "binary mask, bit-packed (1 bit per voxel)"};
+
+    @Parameter
+    StatusService statusService;
+
     ImagePlus imp;
     int width;
     int height;
@@ -68,6 +81,7 @@ public class RoisToMask3DPlugin implements Command {
         gd.addNumericField("Slices", nslices, 0);
         gd.addCheckbox("Use calibration from active image?", true);
         gd.addCheckbox("Associate ROIs to slices",true);
+        gd.addChoice("Output", outputChoices, outputChoices[0]);
         gd.addHelp(helpURL);
         gd.showDialog();
 
@@ -80,9 +94,42 @@ public class RoisToMask3DPlugin implements Command {
         nslices=(int) gd.getNextNumber();
         boolean useCalib=gd.getNextBoolean();
         boolean associate=gd.getNextBoolean();
+        int outputIdx=gd.getNextChoiceIndex();
+
+        // create binary mask or label image (slices are filled in parallel). progress in the status bar, Esc cancels
+        ImagePlus mask;
+        try (TaskMonitor monitor = TaskMonitor.start("ROIs to Mask", statusService)) {
+            if (outputIdx==0) {
+                try (TaskMonitor.Timer timer = TaskMonitor.Time("rasterization")) {
+                    mask = Conversions.BinaryMaskFromRois(rm.getRoisAsArray(),width,height,nslices, associate, Prefs.getThreads());
+                }
+            }
+            else if (outputIdx<3) {
+                Conversions.LabelGrouping grouping = (outputIdx==1) ? Conversions.LabelGrouping.INDEX : Conversions.LabelGrouping.NAME;
+                try (TaskMonitor.Timer timer = TaskMonitor.Time("rasterization")) {
+                    mask = Conversions.LabelImageFromRois(rm.getRoisAsArray(),width,height,nslices, associate, grouping, Prefs.getThreads());
+                }
+            }
+            else if (outputIdx<5) {
+                // write slice by slice, the result is opened as virtual stack
+                mask = writeMaskToDisk(rm, associate, outputIdx==3 ? Conversions.DiskFormat.TIFF_SEQUENCE : Conversions.DiskFormat.RAW);
+            }
+            else {
+                // 1 bit per voxel, shown as virtual stack (slices are expanded for display)
+                BitMask bitMask;
+                try (TaskMonitor.Timer timer = TaskMonitor.Time("rasterization")) {
+                    bitMask = Conversions.BitMaskFromRois(rm.getRoisAsArray(),width,height,nslices, associate, Prefs.getThreads());
+                }
+                mask = (bitMask==null) ? null : bitMask.toImagePlus();
+            }
+        } catch (CancellationException e) {
+            IJ.log("ROI Manager ROIs to Mask (3D) was canceled");
+            return;
+        }
 
-        // create binary mask
-        ImagePlus mask = Conversions.BinaryMaskFromRois(rm,width,height,nslices, associate);
+        if (mask==null) {
+            return;
+        }
 
         if (useCalib && (imp!=null)) {
             mask.setCalibration(imp.getCalibration());
@@ -90,4 +137,34 @@ public class RoisToMask3DPlugin implements Command {
         mask.show();
     }
 
+
+    /**
+     * Asks for the output location and streams the mask to disk.
+     * @return the written mask as virtual stack, null if canceled or failed
+     */
+    private ImagePlus writeMaskToDisk(RoiManager rm, boolean associate, Conversions.DiskFormat format) {
+        File target;
+        if (format == Conversions.DiskFormat.TIFF_SEQUENCE) {
+            String dir = IJ.getDirectory("Output directory for mask slices");
+            if (dir == null) {
+                return null;
+            }
+            target = new File(dir);
+        }
+        else {
+            SaveDialog sd = new SaveDialog("Save raw mask", "mask", ".raw");
+            if (sd.getFileName() == null) {
+                return null;
+            }
+            target = new File(sd.getDirectory(), sd.getFileName());
+        }
+
+        try (TaskMonitor.Timer timer = TaskMonitor.Time("rasterization")) {
+            return Conversions.BinaryMaskFromRoisToDisk(rm.getRoisAsArray(), width, height, nslices, associate, target, format);
+        } catch (IOException e) {
+            IJ.error("Writing the mask failed: " + e.getMessage());
+            return null;
+        }
+    }
+
 }
@@ -0,0 +1,111 @@
+package de.mpicbg.scf.segtools;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+
+import java.util.function.IntFunction;
+
+/**
+ * Overlay for images with very many rois: the overlay of the image only holds the rois of the current slice and is
+ * exchanged when the user moves to another slice. The rois of a slice are created the first time the slice is shown
+ * and are kept afterwards. Repainting then only scans the rois of one slice instead of all rois of the stack.
+ *
+ * The overlay detaches itself (stops following the slice) when the image is closed or gets another overlay.
+ */
+class SliceIndexedOverlay implements ImageListener {
+
+    private final ImagePlus imp;
+    private final IntFunction<Roi[]> sliceSource;
+    private final Roi[][] roisPerSlice; // index 1..nslices, null: not created yet
+
+    private int shownSlice = -1;
+    private Overlay shownOverlay;
+
+
+    /**
+     * @param imp image which gets the overlay
+     * @param sliceSource creates the rois of a (1-based) slice. Called at most once per slice, from the thread which
+     *                    updates the image (usually the event dispatch thread)
+     */
+    private SliceIndexedOverlay(ImagePlus imp, IntFunction<Roi[]> sliceSource) {
+        this.imp = imp;
+        this.sliceSource = sliceSource;
+        this.roisPerSlice = new Roi[imp.getNSlices() + 1][];
+    }
+
+
+    /**
+     * Shows the rois of the current slice of imp as overlay and follows slice changes.
+     *
+     * @param imp image which gets the overlay. Multiple channels and frames share the rois of a slice.
+     * @param sliceSource creates the rois of a (1-based) slice
+     * @return the installed overlay
+     */
+    static SliceIndexedOverlay install(ImagePlus imp, IntFunction<Roi[]> sliceSource) {
+        SliceIndexedOverlay overlay = new SliceIndexedOverlay(imp, sliceSource);
+        overlay.showSlice(imp.getZ());
+        ImagePlus.addImageListener(overlay);
+        return overlay;
+    }
+
+
+    /** Stops following slice changes. The overlay of the current slice stays on the image. */
+    void detach() {
+        ImagePlus.removeImageListener(this);
+    }
+
+
+    /** Replaces the overlay of the image with the rois of slice, creates them if necessary */
+    private void showSlice(int slice) {
+        if (slice < 1 || slice >= roisPerSlice.length) {
+            return;
+        }
+        if (roisPerSlice[slice] == null) {
+            Roi[] rois = sliceSource.apply(slice);
+            // the overlay only holds this slice: show the rois on every plane
+            for (Roi roi : rois) {
+                roi.setPosition(0);
+            }
+            roisPerSlice[slice] = rois;
+        }
+
+        Overlay ov = new Overlay();
+        for (Roi roi : roisPerSlice[slice]) {
+            ov.add(roi);
+        }
+        shownSlice = slice;
+        shownOverlay = ov;
+        imp.setOverlay(ov);
+    }
+
+
+    @Override
+    public void imageOpened(ImagePlus image) {
+    }
+
+
+    @Override
+    public void imageClosed(ImagePlus image) {
+        if (image == imp) {
+            detach();
+        }
+    }
+
+
+    @Override
+    public void imageUpdated(ImagePlus image) {
+        if (image != imp) {
+            return;
+        }
+        // someone else set an overlay (e.g. the plugin was run again): do not overwrite it
+        if (imp.getOverlay() != shownOverlay) {
+            detach();
+            return;
+        }
+        if (imp.getZ() != shownSlice) {
+            showSlice(imp.getZ());
+        }
+    }
+}
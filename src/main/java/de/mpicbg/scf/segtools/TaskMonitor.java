@@ -0,0 +1,397 @@
+package de.mpicbg.scf.segtools;
+
+import ij.IJ;
+import org.scijava.app.StatusService;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Progress, timing and cancellation of a (long running) task, e.g. a plugin run or the conversion of one file.
+ *
+ * A monitor is started in the thread which runs the task and is the current monitor of that thread until it is
+ * closed. The plugins and the Conversions functions report to the current monitor, if there is one (otherwise they do
+ * not measure anything):
+ * - stage timers: wall time of the stages (label discovery, tracing, rasterization, overlay build, ...), measured in
+ *   the task thread only. Work of worker threads counts towards the stage of the task thread which waits for it.
+ * - counters: e.g. number of voxels rasterized, rois traced, labels found
+ * - progress: slices done, shown in the status bar (SciJava StatusService or ImageJ status bar)
+ * - cancellation: between slices (see ParallelSlices) and labels, the task is canceled with a CancellationException
+ *   when cancel() was called or Esc was pressed in ImageJ.
+ *
+ * Metrics are written to the log or a CSV file when the monitor is closed, if the system property segtools.metrics
+ * is set ("log", or the path of the CSV file). See also writeCsv.
+ */
+public class TaskMonitor implements AutoCloseable {
+
+    /** system property: "log" writes the metrics of every task to the ImageJ log, any other value is a CSV file */
+    public static final String METRICS_PROPERTY = "segtools.metrics";
+
+    private static final ThreadLocal<TaskMonitor> current = new ThreadLocal<>();
+
+    private final String name;
+    private final StatusService statusService;
+    private final TaskMonitor previous;
+    private final Thread thread;
+    private final long startTime = System.nanoTime();
+    private long endTime = 0;
+
+    // in order of first use
+    private final Map<String, LongAdder> stageNanos = new LinkedHashMap<>();
+    private final Map<String, LongAdder> counters = new LinkedHashMap<>();
+
+    private final AtomicInteger activeLoops = new AtomicInteger();
+    private volatile boolean explicitProgress = false;
+    private volatile boolean canceled = false;
+    private int shownPercent = -1;
+
+
+    /** Wall time of a stage, see Time */
+    public static class Timer implements AutoCloseable {
+        private final LongAdder nanos;
+        private final long start;
+
+        private Timer(LongAdder nanos) {
+            this.nanos = nanos;
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            if (nanos != null) {
+                nanos.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+
+    private TaskMonitor(String name, StatusService statusService) {
+        this.name = name;
+        this.statusService = statusService;
+        this.previous = current.get();
+        this.thread = Thread.currentThread();
+    }
+
+
+    /**
+     * Starts monitoring a task in the calling thread. Resets the Esc key state of ImageJ.
+     * Use with try-with-resources, so the monitor is closed also if the task fails or is canceled.
+     *
+     * @param name name of the task, used in the status bar and the metrics
+     * @param statusService SciJava status service (e.g. a plugin @Parameter). null: ImageJ status bar
+     * @return the monitor, current monitor of the calling thread until closed
+     */
+    public static TaskMonitor start(String name, StatusService statusService) {
+        TaskMonitor monitor = new TaskMonitor(name, statusService);
+        IJ.resetEscape();
+        current.set(monitor);
+        monitor.showStatus(name);
+        return monitor;
+    }
+
+
+    /** Like start(String name, StatusService statusService), with the ImageJ status bar. */
+    public static TaskMonitor start(String name) {
+        return start(name, null);
+    }
+
+
+    /** @return the monitor of the task running in the calling thread, null if none */
+    public static TaskMonitor current() {
+        return current.get();
+    }
+
+
+    /**
+     * Measures the wall time of a stage of the current task (use with try-with-resources). Stages may be nested, the
+     * time of a stage includes the time of its inner stages. Does nothing if there is no current monitor or if called
+     * from a worker thread of the task (parallel workers would add up their times, so a stage could take longer than
+     * the task).
+     *
+     * @param stage stage name, e.g. "tracing"
+     */
+    static Timer Time(String stage) {
+        TaskMonitor monitor = current.get();
+        if (monitor == null || monitor.thread != Thread.currentThread()) {
+            return new Timer(null);
+        }
+        monitor.showStatus(monitor.name + ": " + stage);
+        return new Timer(monitor.adder(monitor.stageNanos, stage));
+    }
+
+
+    /** Adds n to a counter of the current task (e.g. "rois"). Does nothing if there is no current monitor. */
+    static void Count(String counter, long n) {
+        TaskMonitor monitor = current.get();
+        if (monitor != null) {
+            monitor.adder(monitor.counters, counter).add(n);
+        }
+    }
+
+
+    /**
+     * Shows the progress of the current task. Once called, the slice loops of the task no longer report progress
+     * themselves. Does nothing if there is no current monitor.
+     */
+    static void Progress(int done, int total) {
+        TaskMonitor monitor = current.get();
+        if (monitor != null) {
+            monitor.explicitProgress = true;
+            monitor.showProgress(done, total);
+        }
+    }
+
+
+    /**
+     * Cancellation point: throws a CancellationException if the current task was canceled (or Esc was pressed).
+     * Does nothing if there is no current monitor.
+     */
+    static void CheckCanceled() {
+        TaskMonitor monitor = current.get();
+        if (monitor != null) {
+            monitor.checkCanceled();
+        }
+    }
+
+
+    /** Requests cancellation, the task stops at its next cancellation point. Can be called from any thread. */
+    public void cancel() {
+        canceled = true;
+    }
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+
+    /** @return wall time of a stage in seconds, 0 if the stage did not run */
+    public double getStageSeconds(String stage) {
+        synchronized (stageNanos) {
+            LongAdder nanos = stageNanos.get(stage);
+            return (nanos == null) ? 0 : nanos.sum() / 1e9;
+        }
+    }
+
+
+    /** @return value of a counter, 0 if never counted */
+    public long getCount(String counter) {
+        synchronized (counters) {
+            LongAdder adder = counters.get(counter);
+            return (adder == null) ? 0 : adder.sum();
+        }
+    }
+
+
+    /** @return seconds since start (until close, if closed) */
+    public double getElapsedSeconds() {
+        return ((endTime == 0 ? System.nanoTime() : endTime) - startTime) / 1e9;
+    }
+
+
+    /**
+     * @return the metrics as (metric, value) pairs: elapsed time, stage times (stage.name [s]), counters and their
+     * throughput (name/s)
+     */
+    public Map<String, Double> getMetrics() {
+        double seconds = getElapsedSeconds();
+        Map<String, Double> metrics = new LinkedHashMap<>();
+        metrics.put("elapsed [s]", seconds);
+        synchronized (stageNanos) {
+            for (Map.Entry<String, LongAdder> entry : stageNanos.entrySet()) {
+                metrics.put("stage." + entry.getKey() + " [s]", entry.getValue().sum() / 1e9);
+            }
+        }
+        synchronized (counters) {
+            for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+                long count = entry.getValue().sum();
+                metrics.put(entry.getKey(), (double) count);
+                metrics.put(entry.getKey() + "/s", seconds > 0 ? count / seconds : 0);
+            }
+        }
+        return metrics;
+    }
+
+
+    /** @return one line per metric */
+    public String summary() {
+        StringBuilder sb = new StringBuilder(name + (canceled ? " (canceled)" : "") + ":");
+        for (Map.Entry<String, Double> metric : getMetrics().entrySet()) {
+            sb.append(String.format("%n  %s: %.3f", metric.getKey(), metric.getValue()));
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Appends the metrics to a CSV file (columns task, metric, value), with a header if the file is new. Several tasks
+     * (threads) can write into the same file.
+     *
+     * @param file CSV file
+     * @throws IOException if the file could not be written
+     */
+    public void writeCsv(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Double> metric : getMetrics().entrySet()) {
+            lines.add(Quote(name) + "," + Quote(metric.getKey()) + "," + metric.getValue());
+        }
+
+        synchronized (TaskMonitor.class) {
+            boolean header = !file.exists() || file.length() == 0;
+            try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+                if (header) {
+                    out.println("task,metric,value");
+                }
+                for (String line : lines) {
+                    out.println(line);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Ends the task: the previous monitor (if any) becomes current again, the status bar is reset and the metrics are
+     * written if the segtools.metrics property is set. Must be called in the thread which started the monitor.
+     */
+    @Override
+    public void close() {
+        if (endTime != 0) {
+            return;
+        }
+        endTime = System.nanoTime();
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+
+        if (statusService != null) {
+            statusService.clearStatus();
+        } else {
+            IJ.showProgress(1.0);
+            IJ.showStatus(canceled ? name + " canceled" : "");
+        }
+
+        String metrics = System.getProperty(METRICS_PROPERTY);
+        if (metrics == null || metrics.isEmpty()) {
+            return;
+        }
+        if (metrics.equals("log")) {
+            IJ.log(summary());
+        } else {
+            try {
+                writeCsv(new File(metrics));
+            } catch (IOException e) {
+                IJ.log("Could not write metrics to " + metrics + ": " + e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Helper for ParallelSlices: wraps the body of a slice loop, so it checks for cancellation before each slice, runs
+     * with this monitor as current monitor (also in worker threads) and reports the progress of the loop. Only the
+     * outermost loop of a task reports progress. endLoop must be called when the loop is done.
+     */
+    IntConsumer wrapLoop(final int nSlices, final IntConsumer body) {
+        final boolean reportProgress = activeLoops.getAndIncrement() == 0 && !explicitProgress;
+        final AtomicInteger done = new AtomicInteger();
+
+        return slice -> {
+            checkCanceled();
+
+            TaskMonitor outer = current.get();
+            current.set(this);
+            try {
+                body.accept(slice);
+            } finally {
+                if (outer == null) {
+                    current.remove();
+                } else {
+                    current.set(outer);
+                }
+            }
+
+            if (reportProgress && !explicitProgress) {
+                showProgress(done.incrementAndGet(), nSlices);
+            }
+        };
+    }
+
+
+    /** Helper for ParallelSlices, see wrapLoop */
+    void endLoop() {
+        activeLoops.decrementAndGet();
+    }
+
+
+    private void checkCanceled() {
+        if (!canceled && IJ.escapePressed()) {
+            canceled = true;
+        }
+        if (canceled) {
+            throw new CancellationException(name + " canceled");
+        }
+    }
+
+
+    /** Helper: shows the progress, at most once per percent */
+    private void showProgress(int done, int total) {
+        int percent = (total > 0) ? (int) (100L * done / total) : 100;
+        synchronized (this) {
+            if (percent == shownPercent) {
+                return;
+            }
+            shownPercent = percent;
+        }
+        if (statusService != null) {
+            statusService.showProgress(done, total);
+        } else {
+            IJ.showProgress(done, total);
+        }
+    }
+
+
+    private void showStatus(String message) {
+        if (statusService != null) {
+            statusService.showStatus(message);
+        } else {
+            IJ.showStatus(message);
+        }
+    }
+
+
+    private LongAdder adder(Map<String, LongAdder> map, String key) {
+        synchronized (map) {
+            LongAdder adder = map.get(key);
+            if (adder == null) {
+                adder = new LongAdder();
+                map.put(key, adder);
+            }
+            return adder;
+        }
+    }
+
+
+    /** Helper for writeCsv: quotes a CSV field if necessary */
+    private static String Quote(String field) {
+        if (field.contains(",") || field.contains("\"")) {
+            return "\"" + field.replace("\"", "\"\"") + "\"";
+        }
+        return field;
+    }
+}